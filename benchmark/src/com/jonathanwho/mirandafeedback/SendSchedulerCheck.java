@@ -0,0 +1,134 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the decisions of {@link SendScheduler} against a fake clock and a
+ * fake device, including the delayed drains the outbox schedules on the
+ * clock. Lives in the library's package to reach the scheduler, which is
+ * not public. Exits with status 1 at the first check that fails.
+ */
+public class SendSchedulerCheck {
+   private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+   private static final long START = 1700000000000L;
+
+   private static int checks;
+
+   public static void main(String[] args) {
+      FakeClock clock = new FakeClock(START);
+      FakeDevice device = new FakeDevice();
+      SendScheduler scheduler = new SendScheduler(clock, device);
+
+      // the immediate policy only waits for a network
+      check(scheduler.delayMs(START) == SendScheduler.WAIT_FOR_DEVICE, "offline waits");
+      device.connected = true;
+      check(scheduler.delayMs(START) == 0, "immediate sends when online");
+
+      // the deadline counts from the oldest submission, on the fake clock
+      scheduler.setPolicy(SendPolicy.whenUnmetered(HOUR_MS));
+      check(scheduler.delayMs(START) == HOUR_MS, "metered waits for the deadline");
+      clock.advance(HOUR_MS / 4);
+      check(scheduler.delayMs(START) == HOUR_MS * 3 / 4, "deadline follows the clock");
+      device.unmetered = true;
+      check(scheduler.delayMs(START) == 0, "unmetered sends");
+
+      device.unmetered = false;
+      scheduler.setPolicy(SendPolicy.whileCharging(HOUR_MS));
+      check(scheduler.delayMs(START) == HOUR_MS * 3 / 4, "on battery waits for the deadline");
+      device.charging = true;
+      check(scheduler.delayMs(START) == 0, "charging sends");
+
+      scheduler.setPolicy(SendPolicy.withinDeadline(HOUR_MS));
+      check(scheduler.delayMs(START) == HOUR_MS * 3 / 4, "deadline ignores the charger");
+      clock.advance(HOUR_MS);
+      check(scheduler.delayMs(START) == 0, "past the deadline sends");
+
+      // the outbox drains again after the delay, as counted by the clock
+      long queuedAt = clock.currentTimeMillis();
+      final int[] drains = new int[1];
+      Runnable drain = new Runnable() {
+         public void run() {
+            drains[0]++;
+         }
+      };
+      scheduler.schedule(drain, scheduler.delayMs(queuedAt));
+      clock.advance(HOUR_MS - 1);
+      check(drains[0] == 0, "no drain before the deadline");
+      clock.advance(1);
+      check(drains[0] == 1, "one drain at the deadline");
+      clock.advance(HOUR_MS);
+      check(drains[0] == 1, "a drain runs once");
+
+      Future<?> cancelled = scheduler.schedule(drain, 1000);
+      cancelled.cancel(false);
+      clock.advance(1000);
+      check(drains[0] == 1, "a cancelled drain does not run");
+
+      System.out.println(checks + " checks passed");
+   }
+
+   private static void check(boolean passed, String what) {
+      checks++;
+      if (!passed) {
+         System.out.println("failed: " + what);
+         System.exit(1);
+      }
+   }
+
+   /**
+    * A clock that only moves when told to, and runs the tasks that fall due.
+    */
+   private static class FakeClock implements SendScheduler.Clock {
+      private final List<Long> dueTimes = new ArrayList<Long>();
+      private final List<FutureTask<?>> tasks = new ArrayList<FutureTask<?>>();
+      private long now;
+
+      FakeClock(long now) {
+         this.now = now;
+      }
+
+      public long currentTimeMillis() {
+         return now;
+      }
+
+      public Future<?> schedule(Runnable task, long delayMs) {
+         FutureTask<Void> future = new FutureTask<Void>(task, null);
+         dueTimes.add(now + delayMs);
+         tasks.add(future);
+         return future;
+      }
+
+      void advance(long ms) {
+         now += ms;
+         for (int i = 0; i < tasks.size(); i++) {
+            if (dueTimes.get(i) <= now) {
+               FutureTask<?> task = tasks.remove(i);
+               dueTimes.remove(i--);
+               task.run();
+            }
+         }
+      }
+   }
+
+   private static class FakeDevice implements SendScheduler.DeviceState {
+      boolean connected;
+      boolean unmetered;
+      boolean charging;
+
+      public boolean isConnected() {
+         return connected;
+      }
+
+      public boolean isUnmetered() {
+         return unmetered;
+      }
+
+      public boolean isCharging() {
+         return charging;
+      }
+   }
+}
@@ -0,0 +1,55 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the feedback the benchmarks format and send.
+ */
+final class BenchmarkInputs {
+   /** Input kind made of ordinary prose */
+   static final String PROSE = "prose";
+   /** Input kind made of characters HTML escaping has to replace */
+   static final String MARKUP = "markup";
+
+   private static final String PROSE_TEXT =
+      "The app crashes when I rotate the screen while the settings are open. ";
+   private static final String MARKUP_TEXT =
+      "<b>\"Save\" & 'Cancel'</b> do nothing <i>after</i> a <a href='x'>link</a>\n";
+
+   private BenchmarkInputs() {
+   }
+
+   /**
+    * @return |length| characters of |kind| input.
+    */
+   static String text(int length, String kind) {
+      String unit = MARKUP.equals(kind) ? MARKUP_TEXT : PROSE_TEXT;
+      StringBuilder text = new StringBuilder(length + unit.length());
+      while (text.length() < length)
+         text.append(unit);
+      text.setLength(length);
+      return text.toString();
+   }
+
+   /**
+    * @return Labels of |fieldCount| - 1 custom fields, the feedback field
+    *    making up the rest.
+    */
+   static List<String> labels(int fieldCount) {
+      List<String> labels = new ArrayList<String>(fieldCount);
+      for (int i = 1; i < fieldCount; i++)
+         labels.add("Field " + i);
+      return labels;
+   }
+
+   /**
+    * @return |fieldCount| values of |length| characters each.
+    */
+   static CharSequence[] values(int fieldCount, int length, String kind) {
+      CharSequence[] values = new CharSequence[fieldCount];
+      for (int i = 0; i < fieldCount; i++)
+         values[i] = text(length, kind);
+      return values;
+   }
+}
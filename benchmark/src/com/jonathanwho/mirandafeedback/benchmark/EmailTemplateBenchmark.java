@@ -0,0 +1,65 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jonathanwho.mirandafeedback.EmailTemplate;
+
+/**
+ * Formatting a response into the HTML and plain text email bodies, what
+ * FeedbackDialog.formattedHtmlEmail() and formattedPlainTextEmail() do once
+ * the values are read from the form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EmailTemplateBenchmark {
+   @Param({ "1", "4", "16" })
+   public int fieldCount;
+
+   @Param({ "64", "4096", "65536" })
+   public int textSize;
+
+   @Param({ BenchmarkInputs.PROSE, BenchmarkInputs.MARKUP })
+   public String input;
+
+   private EmailTemplate htmlTemplate;
+   private EmailTemplate textTemplate;
+   private CharSequence[] values;
+
+   @Setup
+   public void setUp() {
+      htmlTemplate = new EmailTemplate(BenchmarkInputs.labels(fieldCount), false);
+      textTemplate = new EmailTemplate(BenchmarkInputs.labels(fieldCount), true);
+      values = BenchmarkInputs.values(fieldCount, textSize, input);
+   }
+
+   @Benchmark
+   public String formatHtml() {
+      return htmlTemplate.format(values);
+   }
+
+   @Benchmark
+   public String formatPlainText() {
+      return textTemplate.format(values);
+   }
+
+   @Benchmark
+   public EmailTemplate compileHtml() {
+      return new EmailTemplate(BenchmarkInputs.labels(fieldCount), false);
+   }
+}
@@ -0,0 +1,228 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLServerSocketFactory;
+
+/**
+ * A stand-in SMTP server on the loopback interface, for load tests of the
+ * real send path. It accepts any credentials and swallows every message.
+ *
+ * Replies can be delayed to simulate a distant server, every nth MAIL FROM
+ * can be throttled with a 451, and every nth message can be dropped by
+ * closing the connection before the reply to its data. With an
+ * SSLServerSocketFactory it speaks SMTPS, otherwise plain SMTP.
+ */
+public class FakeSmtpServer {
+   private static final Charset ASCII = Charset.forName("US-ASCII");
+
+   private final SSLServerSocketFactory sslFactory;
+   private ServerSocket serverSocket;
+   private Thread acceptThread;
+
+   private volatile long replyLatencyMs;
+   private volatile int throttleEvery;
+   private volatile int dropEvery;
+
+   private final AtomicInteger mailCommands = new AtomicInteger();
+   private final AtomicInteger dataCommands = new AtomicInteger();
+   private final AtomicLong accepted = new AtomicLong();
+   private final AtomicLong connections = new AtomicLong();
+
+   /**
+    * Construct a new FakeSmtpServer.
+    * @param sslFactory Factory of the SMTPS server socket, or null for plain
+    *    SMTP.
+    */
+   public FakeSmtpServer(SSLServerSocketFactory sslFactory) {
+      this.sslFactory = sslFactory;
+   }
+
+   /**
+    * Delays every reply.
+    * @param replyLatencyMs Delay in milliseconds, 0 for none.
+    */
+   public void setReplyLatency(long replyLatencyMs) {
+      this.replyLatencyMs = replyLatencyMs;
+   }
+
+   /**
+    * Answers every nth MAIL FROM with 451, as a rate limited server does.
+    * @param throttleEvery n, 0 to never throttle.
+    */
+   public void setThrottleEvery(int throttleEvery) {
+      this.throttleEvery = throttleEvery;
+   }
+
+   /**
+    * Closes the connection instead of replying to every nth message.
+    * @param dropEvery n, 0 to never drop.
+    */
+   public void setDropEvery(int dropEvery) {
+      this.dropEvery = dropEvery;
+   }
+
+   /**
+    * @return Number of messages accepted.
+    */
+   public long getAcceptedCount() {
+      return accepted.get();
+   }
+
+   /**
+    * @return Number of connections opened.
+    */
+   public long getConnectionCount() {
+      return connections.get();
+   }
+
+   /**
+    * Starts listening on a free loopback port.
+    * @return The port.
+    */
+   public synchronized int start() throws IOException {
+      InetAddress loopback = InetAddress.getByName("127.0.0.1");
+      serverSocket =
+         sslFactory != null ? sslFactory.createServerSocket(0, 50, loopback) : new ServerSocket(
+            0, 50, loopback);
+      acceptThread = new Thread(new Runnable() {
+         public void run() {
+            acceptLoop();
+         }
+      }, "FakeSmtpServer");
+      acceptThread.setDaemon(true);
+      acceptThread.start();
+      return serverSocket.getLocalPort();
+   }
+
+   /**
+    * Stops listening. Open connections die with their client.
+    */
+   public synchronized void stop() {
+      try {
+         if (serverSocket != null)
+            serverSocket.close();
+      } catch (IOException e) {
+         // shutting down anyway
+      }
+      serverSocket = null;
+   }
+
+   private void acceptLoop() {
+      ServerSocket server = serverSocket;
+      while (true) {
+         final Socket socket;
+         try {
+            socket = server.accept();
+         } catch (IOException e) {
+            return; // stopped
+         }
+         connections.incrementAndGet();
+         Thread thread = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  serve(socket);
+               } catch (IOException e) {
+                  // the client went away
+               } finally {
+                  try {
+                     socket.close();
+                  } catch (IOException e) {
+                     // closing anyway
+                  }
+               }
+            }
+         }, "FakeSmtpConnection");
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+
+   private void serve(Socket socket) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ASCII));
+      OutputStream out = socket.getOutputStream();
+      reply(out, "220 fake.smtp.local ESMTP ready");
+
+      boolean mailAccepted = false;
+      String line;
+      while ((line = in.readLine()) != null) {
+         String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line;
+         if (command.equals("EHLO")) {
+            reply(out, "250-fake.smtp.local\r\n250-PIPELINING\r\n250-8BITMIME\r\n"
+               + "250 AUTH PLAIN LOGIN");
+         } else if (command.equals("HELO")) {
+            reply(out, "250 fake.smtp.local");
+         } else if (command.equals("AUTH")) {
+            authenticate(line, in, out);
+         } else if (command.equals("MAIL")) {
+            int every = throttleEvery;
+            mailAccepted = every <= 0 || mailCommands.incrementAndGet() % every != 0;
+            reply(out, mailAccepted ? "250 2.1.0 OK" : "451 4.7.0 Too many messages, slow down");
+         } else if (command.equals("RCPT")) {
+            reply(out, mailAccepted ? "250 2.1.5 OK" : "503 5.5.1 MAIL first");
+         } else if (command.equals("DATA")) {
+            if (!mailAccepted) {
+               reply(out, "503 5.5.1 MAIL first");
+               continue;
+            }
+            reply(out, "354 Go ahead");
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+               // swallows the message
+            }
+            mailAccepted = false;
+            int every = dropEvery;
+            if (every > 0 && dataCommands.incrementAndGet() % every == 0)
+               return; // drops the connection without a reply
+            accepted.incrementAndGet();
+            reply(out, "250 2.0.0 OK queued");
+         } else if (command.equals("RSET")) {
+            mailAccepted = false;
+            reply(out, "250 2.0.0 OK");
+         } else if (command.equals("NOOP")) {
+            reply(out, "250 2.0.0 OK");
+         } else if (command.equals("QUIT")) {
+            reply(out, "221 2.0.0 Bye");
+            return;
+         } else {
+            reply(out, "502 5.5.1 Unrecognized command");
+         }
+      }
+   }
+
+   private void authenticate(String line, BufferedReader in, OutputStream out) throws IOException {
+      String[] parts = line.split(" ");
+      if (parts.length > 1 && parts[1].equalsIgnoreCase("LOGIN")) {
+         reply(out, "334 VXNlcm5hbWU6"); // "Username:"
+         in.readLine();
+         reply(out, "334 UGFzc3dvcmQ6"); // "Password:"
+         in.readLine();
+      } else if (parts.length == 2) {
+         reply(out, "334 ");
+         in.readLine();
+      }
+      reply(out, "235 2.7.0 Accepted");
+   }
+
+   private void reply(OutputStream out, String reply) throws IOException {
+      long latency = replyLatencyMs;
+      if (latency > 0) {
+         try {
+            Thread.sleep(latency);
+         } catch (InterruptedException e) {
+            throw new SocketException("Interrupted");
+         }
+      }
+      out.write((reply + "\r\n").getBytes(ASCII));
+      out.flush();
+   }
+}
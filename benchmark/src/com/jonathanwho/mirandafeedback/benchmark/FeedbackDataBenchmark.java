@@ -0,0 +1,110 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jonathanwho.mail.Attachment;
+import com.jonathanwho.mail.GmailSender;
+import com.jonathanwho.mirandafeedback.EmailTemplate;
+import com.jonathanwho.mirandafeedback.FeedbackData;
+
+/**
+ * Formatting a response together with its FeedbackData part, and reading
+ * the parts back out of an mbox export of such emails.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FeedbackDataBenchmark {
+   private static final String APP_NAME = "Benchmark";
+   private static final String SENDER = "sender@example.com";
+   private static final String RECIPIENTS = "feedback@example.com";
+   private static final long TIMESTAMP = 1700000000000L;
+
+   @Param({ "4" })
+   public int fieldCount;
+
+   @Param({ "64", "4096" })
+   public int textSize;
+
+   @Param({ BenchmarkInputs.PROSE, BenchmarkInputs.MARKUP })
+   public String input;
+
+   /** Number of emails in the mbox */
+   @Param({ "100" })
+   public int messageCount;
+
+   private EmailTemplate template;
+   private CharSequence[] values;
+   private byte[] mbox;
+
+   @Setup
+   public void setUp() throws MessagingException, IOException {
+      template = new EmailTemplate(BenchmarkInputs.labels(fieldCount), false);
+      values = BenchmarkInputs.values(fieldCount, textSize, input);
+
+      GmailSender sender = new GmailSender(SENDER, "unused", false);
+      StringBuilder data = FeedbackData.open(APP_NAME, TIMESTAMP, textSize * fieldCount);
+      String body = template.formatTo(new StringBuilder(), data, values).toString();
+      MimeMessage message =
+         sender.createMessage("Feedback", body, SENDER, RECIPIENTS, Arrays
+            .<Attachment> asList(FeedbackData.close(data)));
+      message.saveChanges();
+      ByteArrayOutputStream email = new ByteArrayOutputStream();
+      message.writeTo(email);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int i = 0; i < messageCount; i++) {
+         out.write("From sender@example.com Tue Nov 14 22:13:20 2023\n".getBytes("US-ASCII"));
+         email.writeTo(out);
+         out.write('\n');
+      }
+      mbox = out.toByteArray();
+   }
+
+   @Benchmark
+   public String formatHtml() {
+      return template.format(values);
+   }
+
+   @Benchmark
+   public String formatHtmlWithData() {
+      int length = template.estimateLength(values);
+      StringBuilder data = FeedbackData.open(APP_NAME, TIMESTAMP, length);
+      String body = template.formatTo(new StringBuilder(length), data, values).toString();
+      return FeedbackData.close(data).getLength() > 0 ? body : null;
+   }
+
+   @Benchmark
+   public int readMbox() throws IOException {
+      FeedbackDataReader reader = new FeedbackDataReader(new ByteArrayInputStream(mbox));
+      int count = 0;
+      while (reader.next() != null)
+         count++;
+      reader.close();
+      if (count != messageCount)
+         throw new IllegalStateException("Read " + count + " of " + messageCount);
+      return count;
+   }
+}
@@ -0,0 +1,472 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+import com.jonathanwho.mirandafeedback.FeedbackData;
+
+/**
+ * Reads the {@link FeedbackData} parts out of an mbox export of feedback
+ * emails, one part at a time, for ingestion on a plain JVM. It is a tool
+ * for the receiving side and is not part of the Android library.
+ *
+ * The mbox is read line by line and never held in memory: only the headers
+ * of the current MIME part and the body of a {@link FeedbackData#MIME_TYPE}
+ * part are kept. Other parts, attachments included, are skipped in the read
+ * buffer, without being decoded or turned into Strings. A digest email
+ * yields one {@link FeedbackData} per submission it merges. Parts that
+ * cannot be decoded are counted in {@link #getSkippedCount()} and skipped,
+ * so one damaged message does not stop the import.
+ *
+ * <pre>
+ * FeedbackDataReader reader = new FeedbackDataReader(new FileInputStream("feedback.mbox"));
+ * for (FeedbackData data; (data = reader.next()) != null;)
+ *    store(data.getTimestamp(), data.getValue(EmailTemplate.FEEDBACK_LABEL));
+ * reader.close();
+ * </pre>
+ */
+public class FeedbackDataReader implements Closeable {
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+   private static final byte[] MBOX_SEPARATOR = { 'F', 'r', 'o', 'm', ' ' };
+   private static final String CONTENT_TYPE = "content-type:";
+   private static final String TRANSFER_ENCODING = "content-transfer-encoding:";
+   private static final String BOUNDARY = "boundary=";
+
+   private final InputStream in;
+   /** Boundaries of the multiparts of the current message, as "--" + boundary */
+   private final List<String> boundaries = new ArrayList<String>();
+   private final ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+   /** Read ahead from |in|, the unread bytes between |position| and |limit| */
+   private byte[] buffer = new byte[BUFFER_SIZE];
+   private int position;
+   private int limit;
+   /** The current line in |buffer|, without its line break */
+   private int lineStart;
+   private int lineEnd;
+   /** True if the current line ended a part and is read again */
+   private boolean lineHeld;
+   private int skipped;
+
+   /**
+    * Construct a new FeedbackDataReader.
+    * @param mbox The mbox export, closed by {@link #close()}.
+    */
+   public FeedbackDataReader(InputStream mbox) {
+      in = mbox;
+   }
+
+   /**
+    * @return The next {@link FeedbackData} in the mbox, or null at its end.
+    */
+   public FeedbackData next() throws IOException {
+      // true while reading the headers of a message or a part
+      boolean inHeaders = false;
+      String header = null;
+      String contentType = null;
+      String encoding = null;
+      while (nextLine()) {
+         if (lineStartsWith(MBOX_SEPARATOR)) {
+            boundaries.clear();
+            inHeaders = true;
+            header = contentType = encoding = null;
+            continue;
+         }
+         if (isBoundary()) {
+            // the closing boundary is followed by the epilogue, not headers
+            inHeaders = !lineString().trim().endsWith("--");
+            header = contentType = encoding = null;
+            continue;
+         }
+         if (!inHeaders)
+            continue;
+         String text = lineString();
+         if (!text.isEmpty() && (text.charAt(0) == ' ' || text.charAt(0) == '\t')) {
+            // folded header
+            if (header != null)
+               header += text;
+            continue;
+         }
+         if (header != null) {
+            String name = header.toLowerCase(Locale.US);
+            if (name.startsWith(CONTENT_TYPE))
+               contentType = header.substring(CONTENT_TYPE.length()).trim();
+            else if (name.startsWith(TRANSFER_ENCODING))
+               encoding = header.substring(TRANSFER_ENCODING.length()).trim();
+         }
+         header = text;
+         if (!text.isEmpty())
+            continue;
+         // end of the headers
+         inHeaders = false;
+         if (contentType == null)
+            continue;
+         String type = contentType.toLowerCase(Locale.US);
+         if (type.startsWith("multipart/")) {
+            String boundary = parameter(contentType, BOUNDARY);
+            if (boundary != null)
+               boundaries.add("--" + boundary);
+         } else if (type.startsWith(FeedbackData.MIME_TYPE)) {
+            FeedbackData data = decode(readBody(), encoding);
+            if (data != null)
+               return data;
+            skipped++;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @return Number of {@link FeedbackData} parts that could not be decoded.
+    */
+   public int getSkippedCount() {
+      return skipped;
+   }
+
+   public void close() throws IOException {
+      in.close();
+   }
+
+   /**
+    * Reads the body of the current part up to the boundary or the next
+    * message, which is read again by {@link #next()}.
+    */
+   private byte[] readBody() throws IOException {
+      body.reset();
+      while (nextLine()) {
+         if (isBoundary() || lineStartsWith(MBOX_SEPARATOR)) {
+            lineHeld = true;
+            break;
+         }
+         body.write(buffer, lineStart, lineEnd - lineStart);
+         body.write('\r');
+         body.write('\n');
+      }
+      return body.toByteArray();
+   }
+
+   /**
+    * @return True if the current line starts or ends a part of the current
+    *    message.
+    */
+   private boolean isBoundary() {
+      int end = lineEnd;
+      if (end - lineStart < 2 || buffer[lineStart] != '-' || buffer[lineStart + 1] != '-')
+         return false;
+      while (end > lineStart && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t'))
+         end--;
+      String text = new String(buffer, lineStart, end - lineStart, LATIN_1);
+      for (String boundary : boundaries) {
+         if (text.equals(boundary)
+            || text.length() == boundary.length() + 2 && text.startsWith(boundary)
+            && text.endsWith("--"))
+            return true;
+      }
+      return false;
+   }
+
+   private boolean lineStartsWith(byte[] prefix) {
+      if (lineEnd - lineStart < prefix.length)
+         return false;
+      for (int i = 0; i < prefix.length; i++) {
+         if (buffer[lineStart + i] != prefix[i])
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * @return The current line, its bytes as ISO-8859-1 characters.
+    */
+   private String lineString() {
+      return new String(buffer, lineStart, lineEnd - lineStart, LATIN_1);
+   }
+
+   /**
+    * Moves to the next line, or stays on the current one if it is held.
+    * @return False at the end of the mbox.
+    */
+   private boolean nextLine() throws IOException {
+      if (lineHeld) {
+         lineHeld = false;
+         return true;
+      }
+      int scanned = position;
+      while (true) {
+         for (int i = scanned; i < limit; i++) {
+            if (buffer[i] == '\n') {
+               setLine(position, i);
+               position = i + 1;
+               return true;
+            }
+         }
+         scanned = limit - position;
+         if (!fill()) {
+            if (position == limit)
+               return false;
+            // last line without a line break
+            setLine(position, limit);
+            position = limit;
+            return true;
+         }
+         scanned += position;
+      }
+   }
+
+   private void setLine(int start, int end) {
+      lineStart = start;
+      lineEnd = end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+   }
+
+   /**
+    * Moves the unread bytes to the start of the buffer, growing it for a
+    * line longer than the buffer, and reads more after them.
+    * @return False at the end of |in|.
+    */
+   private boolean fill() throws IOException {
+      int unread = limit - position;
+      if (unread == buffer.length) {
+         byte[] larger = new byte[buffer.length * 2];
+         System.arraycopy(buffer, position, larger, 0, unread);
+         buffer = larger;
+      } else {
+         System.arraycopy(buffer, position, buffer, 0, unread);
+      }
+      position = 0;
+      limit = unread;
+      int count = in.read(buffer, limit, buffer.length - limit);
+      if (count <= 0)
+         return false;
+      limit += count;
+      return true;
+   }
+
+   /**
+    * @return The value of the |name| parameter of a header, unquoted, or null.
+    */
+   private static String parameter(String header, String name) {
+      int start = header.toLowerCase(Locale.US).indexOf(name);
+      if (start < 0)
+         return null;
+      start += name.length();
+      if (start < header.length() && header.charAt(start) == '"') {
+         int end = header.indexOf('"', start + 1);
+         return end < 0 ? null : header.substring(start + 1, end);
+      }
+      int end = start;
+      while (end < header.length() && header.charAt(end) != ';'
+         && !Character.isWhitespace(header.charAt(end)))
+         end++;
+      return header.substring(start, end);
+   }
+
+   /**
+    * @return The document in |bytes|, or null if it cannot be decoded.
+    */
+   private static FeedbackData decode(byte[] bytes, String encoding) throws IOException {
+      InputStream decoded = new ByteArrayInputStream(bytes);
+      if (encoding != null) {
+         try {
+            decoded = MimeUtility.decode(decoded, encoding);
+         } catch (MessagingException e) {
+            return null;
+         }
+      }
+      ByteArrayOutputStream json = new ByteArrayOutputStream(bytes.length);
+      byte[] buffer = new byte[4096];
+      try {
+         for (int count; (count = decoded.read(buffer)) > 0;)
+            json.write(buffer, 0, count);
+         return new Parser(json.toString("UTF-8")).parseDocument();
+      } catch (IOException e) {
+         // damaged base64 or JSON
+         return null;
+      }
+   }
+
+   /**
+    * Parses the JSON written by {@link FeedbackData}. Members it does not
+    * know, such as those of a later schema version, are skipped.
+    */
+   private static class Parser {
+      private final String json;
+      private int position;
+
+      Parser(String json) {
+         this.json = json;
+      }
+
+      FeedbackData parseDocument() throws IOException {
+         int version = 0;
+         String appName = null;
+         long timestamp = 0;
+         List<String> labels = new ArrayList<String>();
+         List<String> values = new ArrayList<String>();
+         expect('{');
+         if (!consume('}')) {
+            do {
+               String name = parseString();
+               expect(':');
+               if (name.equals("v"))
+                  version = (int) parseNumber();
+               else if (name.equals("app"))
+                  appName = consumeNull() ? null : parseString();
+               else if (name.equals("time"))
+                  timestamp = parseNumber();
+               else if (name.equals("fields"))
+                  parseFields(labels, values);
+               else
+                  skipValue();
+            } while (consume(','));
+            expect('}');
+         }
+         if (version < 1)
+            throw new IOException("No schema version");
+         return new FeedbackData(version, appName, timestamp, labels, values);
+      }
+
+      private void parseFields(List<String> labels, List<String> values) throws IOException {
+         expect('[');
+         if (consume(']'))
+            return;
+         do {
+            expect('[');
+            labels.add(parseString());
+            expect(',');
+            values.add(parseString());
+            expect(']');
+         } while (consume(','));
+         expect(']');
+      }
+
+      private String parseString() throws IOException {
+         expect('"');
+         StringBuilder out = new StringBuilder();
+         while (true) {
+            char c = nextChar();
+            if (c == '"')
+               return out.toString();
+            if (c != '\\') {
+               out.append(c);
+               continue;
+            }
+            c = nextChar();
+            switch (c) {
+            case 'n':
+               out.append('\n');
+               break;
+            case 'r':
+               out.append('\r');
+               break;
+            case 't':
+               out.append('\t');
+               break;
+            case 'b':
+               out.append('\b');
+               break;
+            case 'f':
+               out.append('\f');
+               break;
+            case 'u':
+               if (position + 4 > json.length())
+                  throw new IOException("Truncated escape");
+               try {
+                  out.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+               } catch (NumberFormatException e) {
+                  throw new IOException("Bad escape at " + position);
+               }
+               position += 4;
+               break;
+            default:
+               // \" \\ \/
+               out.append(c);
+            }
+         }
+      }
+
+      private long parseNumber() throws IOException {
+         skipWhitespace();
+         int start = position;
+         while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0)
+            position++;
+         try {
+            return (long) Double.parseDouble(json.substring(start, position));
+         } catch (NumberFormatException e) {
+            throw new IOException("Bad number at " + start);
+         }
+      }
+
+      private void skipValue() throws IOException {
+         skipWhitespace();
+         if (position >= json.length())
+            throw new IOException("Truncated document");
+         char c = json.charAt(position);
+         if (c == '"') {
+            parseString();
+         } else if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            position++;
+            if (consume(close))
+               return;
+            do {
+               if (c == '{') {
+                  parseString();
+                  expect(':');
+               }
+               skipValue();
+            } while (consume(','));
+            expect(close);
+         } else {
+            // number, true, false or null
+            int start = position;
+            while (position < json.length() && ",}] \t\r\n".indexOf(json.charAt(position)) < 0)
+               position++;
+            if (position == start)
+               throw new IOException("Unexpected '" + c + "' at " + start);
+         }
+      }
+
+      private boolean consumeNull() {
+         skipWhitespace();
+         if (!json.startsWith("null", position))
+            return false;
+         position += 4;
+         return true;
+      }
+
+      private boolean consume(char c) {
+         skipWhitespace();
+         if (position < json.length() && json.charAt(position) == c) {
+            position++;
+            return true;
+         }
+         return false;
+      }
+
+      private void expect(char c) throws IOException {
+         if (!consume(c))
+            throw new IOException("Expected '" + c + "' at " + position);
+      }
+
+      private char nextChar() throws IOException {
+         if (position >= json.length())
+            throw new IOException("Truncated document");
+         return json.charAt(position++);
+      }
+
+      private void skipWhitespace() {
+         while (position < json.length() && Character.isWhitespace(json.charAt(position)))
+            position++;
+      }
+   }
+}
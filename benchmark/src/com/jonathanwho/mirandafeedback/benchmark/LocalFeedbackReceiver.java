@@ -0,0 +1,212 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.jonathanwho.mirandafeedback.HttpJsonTransport;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface that stands in for the
+ * feedback endpoint of {@link HttpJsonTransport}, so the whole send path can
+ * be exercised without a network. Keep-alive connections, chunked and
+ * gzipped request bodies are supported, every POST is handed to the
+ * {@link Listener} and answered with a configurable status. Requests that
+ * cannot be read are counted in {@link #getFailedRequests()}.
+ */
+public class LocalFeedbackReceiver {
+
+   /**
+    * Receives the decoded JSON of every request.
+    */
+   public interface Listener {
+      void onFeedback(String json);
+   }
+
+   private final Listener listener;
+   private ServerSocket serverSocket;
+   private volatile int responseStatus = 200;
+   private final AtomicInteger failedRequests = new AtomicInteger();
+
+   /**
+    * Construct a new LocalFeedbackReceiver.
+    * @param listener Receives the body of every request, on a server thread.
+    */
+   public LocalFeedbackReceiver(Listener listener) {
+      this.listener = listener;
+   }
+
+   /**
+    * Starts listening on an ephemeral loopback port.
+    * @return The URL to hand to {@link HttpJsonTransport}.
+    */
+   public synchronized URL start() throws IOException {
+      serverSocket = new ServerSocket();
+      serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+      final ServerSocket server = serverSocket;
+      Thread acceptor = new Thread(new Runnable() {
+         public void run() {
+            try {
+               while (true) {
+                  final Socket socket = server.accept();
+                  Thread handler = new Thread(new Runnable() {
+                     public void run() {
+                        serve(socket);
+                     }
+                  }, "LocalFeedbackReceiver connection");
+                  handler.setDaemon(true);
+                  handler.start();
+               }
+            } catch (IOException e) {
+               // closed by stop()
+            }
+         }
+      }, "LocalFeedbackReceiver");
+      acceptor.setDaemon(true);
+      acceptor.start();
+      return new URL("http", "127.0.0.1", serverSocket.getLocalPort(), "/feedback");
+   }
+
+   /**
+    * Stops accepting connections.
+    */
+   public synchronized void stop() throws IOException {
+      if (serverSocket != null) {
+         serverSocket.close();
+         serverSocket = null;
+      }
+   }
+
+   /**
+    * Sets the status every request is answered with, e.g. 429 to simulate
+    * throttling.
+    */
+   public void setResponseStatus(int responseStatus) {
+      this.responseStatus = responseStatus;
+   }
+
+   /**
+    * @return Number of requests that could not be read, e.g. a malformed
+    *    chunked or gzipped body.
+    */
+   public int getFailedRequests() {
+      return failedRequests.get();
+   }
+
+   /**
+    * Serves requests on one connection until the client closes it.
+    */
+   private void serve(Socket socket) {
+      try {
+         InputStream in = new BufferedInputStream(socket.getInputStream());
+         OutputStream out = socket.getOutputStream();
+         String requestLine;
+         while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+            long contentLength = 0;
+            boolean chunked = false;
+            boolean gzip = false;
+            boolean close = requestLine.endsWith("HTTP/1.0");
+            String header;
+            while ((header = readLine(in)) != null && header.length() > 0) {
+               String lower = header.toLowerCase(Locale.US);
+               if (lower.startsWith("content-length:"))
+                  contentLength = Long.parseLong(lower.substring(15).trim());
+               else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked"))
+                  chunked = true;
+               else if (lower.startsWith("content-encoding:") && lower.contains("gzip"))
+                  gzip = true;
+               else if (lower.startsWith("connection:") && lower.contains("close"))
+                  close = true;
+            }
+
+            byte[] body = chunked ? readChunked(in) : readFully(in, contentLength);
+            InputStream decoded = new ByteArrayInputStream(body);
+            if (gzip)
+               decoded = new GZIPInputStream(decoded);
+            listener.onFeedback(new String(readFully(decoded, -1), "UTF-8"));
+
+            int status = responseStatus;
+            out.write(("HTTP/1.1 " + status + (status == 200 ? " OK" : " Error")
+               + "\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            if (close)
+               break;
+         }
+      } catch (SocketException e) {
+         // client went away
+      } catch (IOException e) {
+         failedRequests.incrementAndGet();
+      } finally {
+         try {
+            socket.close();
+         } catch (IOException e) {
+            // already closed
+         }
+      }
+   }
+
+   private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != -1 && c != '\n') {
+         if (c != '\r')
+            line.append((char) c);
+      }
+      return c == -1 && line.length() == 0 ? null : line.toString();
+   }
+
+   private static byte[] readChunked(InputStream in) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      while (true) {
+         String sizeLine = readLine(in);
+         if (sizeLine == null)
+            throw new IOException("Truncated chunked body");
+         int extension = sizeLine.indexOf(';');
+         int size =
+            Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(),
+               16);
+         if (size == 0) {
+            // skips trailers
+            String trailer;
+            while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+               // trailers carry nothing the receiver needs
+            }
+            return body.toByteArray();
+         }
+         body.write(readFully(in, size));
+         readLine(in); // CRLF after the chunk
+      }
+   }
+
+   /**
+    * Reads |length| bytes, or everything if |length| is negative.
+    */
+   private static byte[] readFully(InputStream in, long length) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      long remaining = length < 0 ? Long.MAX_VALUE : length;
+      while (remaining > 0) {
+         int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+         if (read == -1) {
+            if (length >= 0)
+               throw new IOException("Truncated body");
+            break;
+         }
+         bytes.write(buffer, 0, read);
+         remaining -= read;
+      }
+      return bytes.toByteArray();
+   }
+}
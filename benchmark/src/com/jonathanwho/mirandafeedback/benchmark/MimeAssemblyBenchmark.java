@@ -0,0 +1,94 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jonathanwho.mail.GmailSender;
+import com.jonathanwho.mirandafeedback.EmailTemplate;
+
+/**
+ * Building the email GmailSender.sendMail() sends and writing it out as it
+ * would go over the wire, without a connection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MimeAssemblyBenchmark {
+   private static final String SUBJECT = "Feedback from the benchmark";
+   private static final String SENDER = "sender@example.com";
+   private static final String RECIPIENTS = "feedback@example.com";
+
+   @Param({ "4" })
+   public int fieldCount;
+
+   @Param({ "64", "4096", "65536" })
+   public int textSize;
+
+   @Param({ BenchmarkInputs.PROSE, BenchmarkInputs.MARKUP })
+   public String input;
+
+   @Param({ "false", "true" })
+   public boolean textEmail;
+
+   private GmailSender sender;
+   private String body;
+   private final CountingOutputStream wire = new CountingOutputStream();
+
+   @Setup
+   public void setUp() {
+      sender = new GmailSender(SENDER, "unused", textEmail);
+      body =
+         new EmailTemplate(BenchmarkInputs.labels(fieldCount), textEmail).format(BenchmarkInputs
+            .values(fieldCount, textSize, input));
+   }
+
+   @Benchmark
+   public MimeMessage build() throws MessagingException {
+      MimeMessage message = sender.createMessage(SUBJECT, body, SENDER, RECIPIENTS);
+      message.saveChanges();
+      return message;
+   }
+
+   @Benchmark
+   public long buildAndWrite() throws MessagingException, IOException {
+      MimeMessage message = sender.createMessage(SUBJECT, body, SENDER, RECIPIENTS);
+      message.saveChanges();
+      wire.count = 0;
+      message.writeTo(wire);
+      return wire.count;
+   }
+
+   /** Counts the bytes a message would put on the wire */
+   private static class CountingOutputStream extends OutputStream {
+      long count;
+
+      @Override
+      public void write(int b) {
+         count++;
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int length) {
+         count += length;
+      }
+   }
+}
@@ -0,0 +1,143 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocketFactory;
+
+import com.jonathanwho.mail.GmailSender;
+import com.jonathanwho.mail.MailSendException;
+import com.jonathanwho.mirandafeedback.EmailTemplate;
+
+/**
+ * Runs concurrent senders through the real {@link GmailSender} path against a
+ * {@link FakeSmtpServer} and reports throughput, latency percentiles and
+ * failures by reason.
+ *
+ * Options are given as name=value: senders, sends (per sender), bodySize,
+ * concurrency (the account's limit of parallel sends), burst and perHour
+ * (the account's rate limit, off unless burst is given), latencyMs,
+ * throttleEvery, dropEvery, and keystore with storepass to run
+ * over SMTPS with a certificate the JVM is told to trust.
+ */
+public class SmtpLoadTest {
+   private static final String ACCOUNT = "load@example.com";
+   private static final String RECIPIENT = "feedback@example.com";
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = new HashMap<String, String>();
+      for (String arg : args) {
+         int equals = arg.indexOf('=');
+         if (equals > 0)
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+      }
+      final int senders = intOption(options, "senders", 4);
+      final int sends = intOption(options, "sends", 100);
+      int bodySize = intOption(options, "bodySize", 2048);
+      String keystore = options.get("keystore");
+
+      FakeSmtpServer server = new FakeSmtpServer(keystore == null ? null : sslFactory(keystore,
+         options.get("storepass")));
+      server.setReplyLatency(intOption(options, "latencyMs", 0));
+      server.setThrottleEvery(intOption(options, "throttleEvery", 0));
+      server.setDropEvery(intOption(options, "dropEvery", 0));
+      final int port = server.start();
+      final boolean ssl = keystore != null;
+      GmailSender account = new GmailSender(ACCOUNT, "secret", false, "127.0.0.1", port, ssl);
+      if (options.containsKey("concurrency"))
+         account.setConcurrencyLimit(intOption(options, "concurrency", 1));
+      account.setRateLimit(intOption(options, "burst", 0), intOption(options, "perHour", 3600));
+
+      final String body =
+         new EmailTemplate(BenchmarkInputs.labels(2), false).format(BenchmarkInputs.values(2,
+            bodySize / 2, BenchmarkInputs.PROSE));
+      final long[] latencies = new long[senders * sends];
+      final AtomicInteger next = new AtomicInteger();
+      final AtomicLongArray failures = new AtomicLongArray(MailSendException.Reason.values().length);
+      final CountDownLatch done = new CountDownLatch(senders);
+
+      long start = System.nanoTime();
+      for (int i = 0; i < senders; i++) {
+         new Thread(new Runnable() {
+            public void run() {
+               try {
+                  for (int j = 0; j < sends; j++) {
+                     long sendStart = System.nanoTime();
+                     try {
+                        new GmailSender(ACCOUNT, "secret", false, "127.0.0.1", port, ssl)
+                           .sendMail("Load test", body, ACCOUNT, RECIPIENT);
+                     } catch (MailSendException e) {
+                        failures.incrementAndGet(e.getReason().ordinal());
+                     }
+                     latencies[next.getAndIncrement()] = System.nanoTime() - sendStart;
+                  }
+               } finally {
+                  done.countDown();
+               }
+            }
+         }, "Sender #" + i).start();
+      }
+      done.await();
+      long elapsed = System.nanoTime() - start;
+      server.stop();
+
+      Arrays.sort(latencies);
+      System.out.println(String.format(Locale.US,
+         "%d senders x %d sends over %s: %.1f sends/s, %d accepted, %d connections",
+         senders, sends, ssl ? "SMTPS" : "SMTP", latencies.length / (elapsed / 1e9),
+         server.getAcceptedCount(), server.getConnectionCount()));
+      System.out.println(String.format(Locale.US,
+         "latency ms: p50 %.2f  p90 %.2f  p99 %.2f  max %.2f", percentile(latencies, 50),
+         percentile(latencies, 90), percentile(latencies, 99), latencies[latencies.length - 1] / 1e6));
+      for (MailSendException.Reason reason : MailSendException.Reason.values()) {
+         long count = failures.get(reason.ordinal());
+         if (count > 0)
+            System.out.println("failed " + reason + ": " + count);
+      }
+   }
+
+   private static double percentile(long[] sorted, int percent) {
+      int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+   }
+
+   private static int intOption(Map<String, String> options, String name, int defaultValue) {
+      String value = options.get(name);
+      return value == null ? defaultValue : Integer.parseInt(value);
+   }
+
+   /**
+    * Serves the key in |path| and makes the JVM trust it, so the sender's
+    * default SSLSocketFactory accepts the fake server.
+    */
+   private static SSLServerSocketFactory sslFactory(String path, String password) throws Exception {
+      char[] secret = password == null ? new char[0] : password.toCharArray();
+      KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      InputStream in = new FileInputStream(path);
+      try {
+         keyStore.load(in, secret);
+      } finally {
+         in.close();
+      }
+      KeyManagerFactory keyManagers =
+         KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagers.init(keyStore, secret);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keyManagers.getKeyManagers(), null, null);
+
+      System.setProperty("javax.net.ssl.trustStore", path);
+      if (password != null)
+         System.setProperty("javax.net.ssl.trustStorePassword", password);
+      return context.getServerSocketFactory();
+   }
+}
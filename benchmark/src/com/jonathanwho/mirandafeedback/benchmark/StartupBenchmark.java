@@ -0,0 +1,175 @@
+package com.jonathanwho.mirandafeedback.benchmark;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures what the library costs the host app before its first send, and
+ * checks that none of it loads the mail stack.
+ *
+ * Everything runs in a fresh class loader, so class loading is paid for as
+ * in a cold process. The startup step does what constructing MirandaFeedback
+ * and showing the dialog do off Android: it creates the default transport,
+ * the metrics, a message and formats a form, and reads a queued entry back
+ * out of an outbox journal. MirandaFeedback and FeedbackOutbox themselves
+ * need an Android Context and are not loaded. The first send step then
+ * builds and writes a message through GmailSender. Exits with status 1 if
+ * the startup step loaded a javax.mail, javax.activation or com.sun.mail
+ * class.
+ */
+public class StartupBenchmark {
+   private static final String[] MAIL_PACKAGES = { "javax.mail.", "javax.activation.",
+      "com.sun.mail.", "myjava.awt.datatransfer.", "org.apache.harmony." };
+
+   public static void main(String[] args) throws Exception {
+      RecordingClassLoader loader = new RecordingClassLoader(classPath());
+
+      long start = System.nanoTime();
+      startup(loader);
+      long startupNanos = System.nanoTime() - start;
+      List<String> startupClasses = loader.takeLoaded();
+      List<String> leaked = mailClasses(startupClasses);
+
+      start = System.nanoTime();
+      firstSend(loader);
+      long firstSendNanos = System.nanoTime() - start;
+      List<String> sendClasses = loader.takeLoaded();
+
+      System.out.println(String.format(Locale.US, "startup:    %7.2f ms, %4d classes, %d mail",
+         startupNanos / 1e6, startupClasses.size(), leaked.size()));
+      System.out.println(String.format(Locale.US, "first send: %7.2f ms, %4d classes, %d mail",
+         firstSendNanos / 1e6, sendClasses.size(), mailClasses(sendClasses).size()));
+      if (!leaked.isEmpty()) {
+         System.out.println("startup loaded the mail stack: " + leaked);
+         System.exit(1);
+      }
+   }
+
+   /**
+    * What the library does before the first send.
+    */
+   private static void startup(ClassLoader loader) throws Exception {
+      Class<?> transport = loader.loadClass("com.jonathanwho.mirandafeedback.GmailTransport");
+      transport.getConstructor(String.class, String.class).newInstance("from@example.com",
+         "secret");
+      loader.loadClass("com.jonathanwho.mirandafeedback.FeedbackMetrics").getMethod(
+         "getInstance").invoke(null);
+      loader.loadClass("com.jonathanwho.mail.RetryPolicy").getConstructor().newInstance();
+
+      Class<?> template = loader.loadClass("com.jonathanwho.mirandafeedback.EmailTemplate");
+      Object html =
+         template.getConstructor(List.class, boolean.class).newInstance(
+            Collections.singletonList("Email"), false);
+      Object body =
+         template.getMethod("format", CharSequence[].class).invoke(html,
+            (Object) new CharSequence[] { "It works", "user@example.com" });
+
+      Class<?> message = loader.loadClass("com.jonathanwho.mirandafeedback.FeedbackMessage");
+      message.getConstructor(String.class, String.class, boolean.class, CharSequence.class,
+         long.class).newInstance("Feedback", "to@example.com", false, body, 0L);
+
+      // the outbox drains what the last run left queued
+      File file = File.createTempFile("outbox", null);
+      try {
+         Class<?> journalClass =
+            loader.loadClass("com.jonathanwho.mirandafeedback.OutboxJournal");
+         Constructor<?> constructor = journalClass.getDeclaredConstructor(File.class);
+         constructor.setAccessible(true);
+         Object journal = constructor.newInstance(file);
+         invoke(journal, "append", byte[].class, body.toString().getBytes("UTF-8"));
+         invoke(journal, "peek", int.class, 1);
+         invoke(journal, "close", null, null);
+      } finally {
+         file.delete();
+      }
+   }
+
+   /**
+    * Calls a package-private method of the library.
+    */
+   private static Object invoke(Object target, String name, Class<?> type, Object arg)
+      throws Exception {
+      Method method =
+         type == null ? target.getClass().getDeclaredMethod(name) : target.getClass()
+            .getDeclaredMethod(name, type);
+      method.setAccessible(true);
+      return type == null ? method.invoke(target) : method.invoke(target, arg);
+   }
+
+   /**
+    * The mail work of the first send, short of connecting.
+    */
+   private static void firstSend(ClassLoader loader) throws Exception {
+      Class<?> sender = loader.loadClass("com.jonathanwho.mail.GmailSender");
+      Object instance =
+         sender.getConstructor(String.class, String.class, boolean.class).newInstance(
+            "from@example.com", "secret", false);
+      Method createMessage =
+         sender.getMethod("createMessage", String.class, CharSequence.class, String.class,
+            String.class);
+      Object message =
+         createMessage.invoke(instance, "Feedback", "It works", "from@example.com",
+            "to@example.com");
+      message.getClass().getMethod("saveChanges").invoke(message);
+      message.getClass().getMethod("writeTo", OutputStream.class).invoke(message,
+         new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+         });
+   }
+
+   private static List<String> mailClasses(List<String> classes) {
+      List<String> mail = new ArrayList<String>();
+      for (String name : classes) {
+         for (String prefix : MAIL_PACKAGES) {
+            if (name.startsWith(prefix)) {
+               mail.add(name);
+               break;
+            }
+         }
+      }
+      return mail;
+   }
+
+   private static URL[] classPath() throws Exception {
+      String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+      URL[] urls = new URL[entries.length];
+      for (int i = 0; i < entries.length; i++)
+         urls[i] = new File(entries[i]).toURI().toURL();
+      return urls;
+   }
+
+   /**
+    * Loads the class path again, apart from the application class loader,
+    * and records every class it defines.
+    */
+   private static class RecordingClassLoader extends URLClassLoader {
+      private final List<String> loaded = new ArrayList<String>();
+
+      RecordingClassLoader(URL[] urls) {
+         super(urls, ClassLoader.getSystemClassLoader().getParent());
+      }
+
+      @Override
+      protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
+         Class<?> type = super.findClass(name);
+         loaded.add(name);
+         return type;
+      }
+
+      synchronized List<String> takeLoaded() {
+         List<String> taken = new ArrayList<String>(loaded);
+         loaded.clear();
+         return taken;
+      }
+   }
+}
@@ -0,0 +1,69 @@
+package com.jonathanwho.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * A file sent along with an email, such as a log or a screenshot.
+ */
+public class Attachment {
+   private final String name;
+   private final String mimeType;
+   private final byte[] data;
+   private final int length;
+
+   /**
+    * Construct a new Attachment.
+    * @param name File name shown to the recipient.
+    * @param mimeType Content type of |data|.
+    * @param data The content, not copied so it must not change afterwards.
+    */
+   public Attachment(String name, String mimeType, byte[] data) {
+      this(name, mimeType, data, data.length);
+   }
+
+   /**
+    * Construct a new Attachment over the start of a buffer, such as the
+    * internal buffer of the stream it was encoded into.
+    * @param name File name shown to the recipient.
+    * @param mimeType Content type of |data|.
+    * @param data Holds the content, not copied so it must not change afterwards.
+    * @param length Number of bytes of content at the start of |data|.
+    */
+   public Attachment(String name, String mimeType, byte[] data, int length) {
+      this.name = name;
+      this.mimeType = mimeType;
+      this.data = data;
+      this.length = length;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public String getMimeType() {
+      return mimeType;
+   }
+
+   /**
+    * @return The buffer holding the content, which may be longer than
+    *    {@link #getLength()}.
+    */
+   public byte[] getData() {
+      return data;
+   }
+
+   /**
+    * @return Number of bytes of content.
+    */
+   public int getLength() {
+      return length;
+   }
+
+   /**
+    * @return A stream over the content, without copying it.
+    */
+   public InputStream getInputStream() {
+      return new ByteArrayInputStream(data, 0, length);
+   }
+}
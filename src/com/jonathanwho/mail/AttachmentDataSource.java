@@ -0,0 +1,36 @@
+package com.jonathanwho.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+/**
+ * A DataSource over an {@link Attachment}. JavaMail base64-encodes the
+ * content straight from the attachment's buffer while it writes the message,
+ * so no copy of it is made.
+ */
+class AttachmentDataSource implements DataSource {
+   private final Attachment attachment;
+
+   AttachmentDataSource(Attachment attachment) {
+      this.attachment = attachment;
+   }
+
+   public String getContentType() {
+      return attachment.getMimeType();
+   }
+
+   public InputStream getInputStream() throws IOException {
+      return attachment.getInputStream();
+   }
+
+   public String getName() {
+      return attachment.getName();
+   }
+
+   public OutputStream getOutputStream() throws IOException {
+      throw new IOException("Not Supported");
+   }
+}
@@ -0,0 +1,115 @@
+package com.jonathanwho.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import javax.activation.DataSource;
+
+/**
+ * A DataSource over text that is encoded lazily, a small chunk at a time,
+ * while JavaMail reads it. The text is never copied into a byte[] of its
+ * own, so sending a large body costs a fixed-size buffer instead of several
+ * copies of the body.
+ */
+public class CharSequenceDataSource implements DataSource {
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+   private static final int BUFFER_SIZE = 4096;
+
+   private final CharSequence text;
+   private final String type;
+
+   /**
+    * Construct a new CharSequenceDataSource encoded as UTF-8.
+    * @param text The content. It is read every time the data is requested, so
+    *    it must not change until the message is sent.
+    * @param mimeType Base MIME type such as text/html, the charset is appended.
+    */
+   public CharSequenceDataSource(CharSequence text, String mimeType) {
+      this.text = text;
+      type = mimeType + "; charset=utf-8";
+   }
+
+   public String getContentType() {
+      return type;
+   }
+
+   public InputStream getInputStream() throws IOException {
+      return new EncodingInputStream(text);
+   }
+
+   public String getName() {
+      return "CharSequenceDataSource";
+   }
+
+   public OutputStream getOutputStream() throws IOException {
+      throw new IOException("Not Supported");
+   }
+
+   /**
+    * Encodes a CharSequence to UTF-8 as it is read.
+    */
+   private static class EncodingInputStream extends InputStream {
+      private final CharBuffer chars;
+      private final CharsetEncoder encoder;
+      private final ByteBuffer bytes;
+      private boolean flushed;
+
+      EncodingInputStream(CharSequence text) {
+         chars = CharBuffer.wrap(text);
+         encoder =
+            UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+         bytes = ByteBuffer.allocate(BUFFER_SIZE);
+         bytes.flip(); // starts out empty
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (!fill())
+            return -1;
+         return bytes.get() & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+         if (length == 0)
+            return 0;
+         if (!fill())
+            return -1;
+         int count = Math.min(length, bytes.remaining());
+         bytes.get(buffer, offset, count);
+         return count;
+      }
+
+      @Override
+      public int available() {
+         return bytes.remaining();
+      }
+
+      /**
+       * Encodes the next chunk if everything encoded so far was read.
+       * @return False at the end of the text.
+       */
+      private boolean fill() throws IOException {
+         while (!bytes.hasRemaining()) {
+            if (flushed)
+               return false;
+            bytes.clear();
+            CoderResult result = encoder.encode(chars, bytes, true);
+            if (result.isUnderflow() && encoder.flush(bytes).isUnderflow())
+               flushed = !chars.hasRemaining();
+            else if (result.isError())
+               result.throwException();
+            bytes.flip();
+         }
+         return true;
+      }
+   }
+}
@@ -1,20 +1,22 @@
 package com.jonathanwho.mail;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.security.Security;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.activation.DataHandler;
-import javax.activation.DataSource;
+import javax.mail.Address;
 import javax.mail.Message;
-import javax.mail.PasswordAuthentication;
-import javax.mail.Session;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import com.sun.mail.smtp.SMTPTransport;
 
 /**
  * From StackOverflow
@@ -22,11 +24,13 @@ import javax.mail.internet.MimeMessage;
  * javamail-api-without-using-the-default-built-in-a/2033124#2033124
  * 
  */
-public class GmailSender extends javax.mail.Authenticator {
-   private String mailhost = "smtp.gmail.com";
-   private String user;
-   private String password;
-   private Session session;
+public class GmailSender {
+   /** Gmail's SMTP server */
+   public static final String DEFAULT_HOST = "smtp.gmail.com";
+   /** Gmail's SMTPS port */
+   public static final int DEFAULT_PORT = 465;
+
+   private MailAccount account;
    private String emailFormat;
 
    private final String HTML_EMAIL = "text/html";
@@ -37,83 +41,285 @@ public class GmailSender extends javax.mail.Authenticator {
    }
 
    public GmailSender(String user, String password, boolean textEmail) {
-      this.user = user;
-      this.password = password;
+      this(user, password, textEmail, DEFAULT_HOST, DEFAULT_PORT, true);
+   }
+
+   /**
+    * Construct a GmailSender that sends through another SMTP server, such as a
+    * local stand-in for load tests.
+    * @param host Host name of the SMTP server.
+    * @param port Port of the SMTP server.
+    * @param ssl True to speak TLS from the start (SMTPS), false for plain SMTP.
+    */
+   public GmailSender(String user, String password, boolean textEmail, String host, int port,
+      boolean ssl) {
       emailFormat = textEmail ? TEXT_EMAIL : HTML_EMAIL;
 
-      Properties props = new Properties();
-      props.setProperty("mail.transport.protocol", "smtp");
-      props.setProperty("mail.host", mailhost);
-      props.put("mail.smtp.auth", "true");
-      props.put("mail.smtp.port", "465");
-      props.put("mail.smtp.socketFactory.port", "465");
-      props.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-      props.put("mail.smtp.socketFactory.fallback", "false");
-      props.setProperty("mail.smtp.quitwait", "false");
+      // every account gets its own session, connections and send limit
+      account = MailAccount.get(user, password, host, port, ssl);
+   }
 
-      session = Session.getDefaultInstance(props, this);
+   /**
+    * Sets how many sends of this account, through any GmailSender, may run
+    * at the same time. Further sends wait for a running one to finish.
+    * @param limit Maximum number of concurrent sends, at least 1.
+    */
+   public void setConcurrencyLimit(int limit) {
+      account.setConcurrency(limit);
    }
 
-   protected PasswordAuthentication getPasswordAuthentication() {
-      return new PasswordAuthentication(user, password);
+   /**
+    * @return Maximum number of concurrent sends of this account.
+    */
+   public int getConcurrencyLimit() {
+      return account.getConcurrency();
    }
 
-   public synchronized void sendMail(String subject, String body, String sender, String recipients)
-      throws Exception {
-      try {
-         MimeMessage message = new MimeMessage(session);
-         DataHandler handler =
-            new DataHandler(new ByteArrayDataSource(body.getBytes(), emailFormat));
-         message.setSender(new InternetAddress(sender));
-         message.setSubject(subject);
-         message.setDataHandler(handler);
-         if (recipients.indexOf(',') > 0)
-            message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipients));
-         else
-            message.setRecipient(Message.RecipientType.TO, new InternetAddress(recipients));
-         Transport.send(message);
-      } catch (Exception e) {
+   /**
+    * Limits how fast this account, through any GmailSender, sends messages
+    * from this device: |burst| messages right away, then |perHour|. A send
+    * over the limit fails with {@link MailSendException.Reason#RATE_LIMITED}
+    * and the delay after which it can be made, and a batch is cut to what
+    * the limit allows. By default 20 messages, then 120 per hour.
+    * @param burst Number of messages that may be sent at once, 0 for no limit.
+    * @param perHour Number of messages that may be sent per hour after a burst.
+    */
+   public void setRateLimit(int burst, int perHour) {
+      account.rateLimit.setRate(burst, perHour);
+   }
 
-      }
+   /**
+    * @return Number of messages this account may send at once, 0 if there
+    *    is no limit.
+    */
+   public int getRateLimitBurst() {
+      return account.rateLimit.getBurst();
    }
 
-   public class ByteArrayDataSource implements DataSource {
-      private byte[] data;
-      private String type;
+   /**
+    * @return Number of messages this account may send per hour after a burst.
+    */
+   public int getRateLimitPerHour() {
+      return account.rateLimit.getPerHour();
+   }
 
-      public ByteArrayDataSource(byte[] data, String type) {
-         super();
-         this.data = data;
-         this.type = type;
+   /**
+    * Opens an authenticated connection ahead of the first send and leaves it
+    * in the pool, so the send only has to transmit the message. Blocks until
+    * the connection is up. Failures are ignored, the send then connects as
+    * usual.
+    */
+   public void prewarm() {
+      try {
+         TransportPool pool = account.pool;
+         pool.release(pool.borrow());
+      } catch (MessagingException e) {
+         // best effort
       }
+   }
 
-      public ByteArrayDataSource(byte[] data) {
-         super();
-         this.data = data;
-      }
+   /**
+    * Sends the messages in order over one pooled connection, once the
+    * account is below its concurrency limit, as many as its rate limit allows.
+    * The tokens of the messages that were not sent are given back.
+    * @return Number of messages sent. Sending stops at the first failure.
+    * @throws MailSendException If not even the first message was sent, or
+    *    the rate limit allows none.
+    */
+   private int send(List<MimeMessage> messages) throws MessagingException, MailSendException {
+      int allowed = account.rateLimit.take(messages.size());
+      if (allowed == 0)
+         throw new MailSendException(MailSendException.Reason.RATE_LIMITED, -1, null,
+            account.rateLimit.delayMs());
+      int sent = 0;
+      try {
+         messages = messages.subList(0, allowed);
+         for (MimeMessage message : messages)
+            message.saveChanges();
 
-      public void setType(String type) {
-         this.type = type;
+         try {
+            account.beginSend();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailSendException(MailSendException.Reason.UNKNOWN, -1, e);
+         }
+         try {
+            sent = sendOverPool(messages);
+         } finally {
+            account.endSend();
+         }
+         return sent;
+      } catch (MailSendException e) {
+         // the server may have queued the message, so it keeps its token
+         if (e.getReason() == MailSendException.Reason.UNCONFIRMED)
+            sent = 1;
+         throw e;
+      } finally {
+         account.rateLimit.refund(allowed - sent);
       }
+   }
 
-      public String getContentType() {
-         if (type == null)
-            return "application/octet-stream";
-         else
-            return type;
+   /**
+    * Sends the messages in order over one pooled connection. If a reused
+    * connection turns out to be broken before a message's body was written,
+    * the sending goes on over a fresh one. A message whose connection broke
+    * after its body may already be queued by the server, so it is counted as
+    * sent, or fails as {@link MailSendException.Reason#UNCONFIRMED} if it is
+    * the first, and the sending stops.
+    */
+   private int sendOverPool(List<MimeMessage> messages) throws MessagingException,
+      MailSendException {
+      TransportPool pool = account.pool;
+      Transport transport = pool.borrow();
+      boolean reconnected = false;
+      int sent = 0;
+      while (sent < messages.size()) {
+         MimeMessage message = messages.get(sent);
+         try {
+            transport.sendMessage(message, message.getAllRecipients());
+            sent++;
+         } catch (SendFailedException e) {
+            // addresses were rejected, the connection itself is fine
+            pool.release(transport);
+            if (sent > 0)
+               return sent;
+            throw SmtpFailures.classify(e, lastReturnCode(transport));
+         } catch (MessagingException e) {
+            int returnCode = lastReturnCode(transport);
+            pool.invalidate(transport);
+            if (isDataAccepted(transport)) {
+               // the body went out, only the final reply is missing
+               if (sent > 0)
+                  return sent + 1;
+               throw new MailSendException(MailSendException.Reason.UNCONFIRMED, returnCode, e);
+            }
+            // gives up if the server answered or a fresh connection failed too
+            if (returnCode >= 400 || reconnected) {
+               if (sent > 0)
+                  return sent;
+               throw SmtpFailures.classify(e, returnCode);
+            }
+            try {
+               transport = pool.borrow();
+               reconnected = true;
+            } catch (MessagingException connectError) {
+               if (sent > 0)
+                  return sent;
+               throw connectError;
+            }
+         }
       }
+      pool.release(transport);
+      return sent;
+   }
 
-      public InputStream getInputStream() throws IOException {
-         return new ByteArrayInputStream(data);
-      }
+   /**
+    * @return True if the failed send wrote the whole body, which the last
+    *    reply code no longer shows once the connection dropped.
+    */
+   private static boolean isDataAccepted(Transport transport) {
+      return transport instanceof PipeliningTransport
+         && ((PipeliningTransport) transport).isDataAccepted();
+   }
+
+   private static int lastReturnCode(Transport transport) {
+      return transport instanceof SMTPTransport ? ((SMTPTransport) transport).getLastReturnCode()
+         : -1;
+   }
+
+   /**
+    * Builds an email without sending it. Needs no connection, so the MIME
+    * assembly can be measured on a plain JVM.
+    * @param body The body, encoded as UTF-8 when the message is written.
+    * @param recipients One address, or several separated by commas.
+    */
+   public MimeMessage createMessage(String subject, CharSequence body, String sender,
+      String recipients) throws MessagingException {
+      return createMessage(subject, body, sender, recipients, Collections
+         .<Attachment> emptyList());
+   }
 
-      public String getName() {
-         return "ByteArrayDataSource";
+   /**
+    * Builds an email with attachments without sending it. With attachments
+    * the email is multipart/mixed, the body first.
+    */
+   public MimeMessage createMessage(String subject, CharSequence body, String sender,
+      String recipients, List<Attachment> attachments) throws MessagingException {
+      MimeMessage message = new MimeMessage(account.session);
+      DataHandler handler = new DataHandler(new CharSequenceDataSource(body, emailFormat));
+      message.setSender(new InternetAddress(sender));
+      message.setSubject(subject, "UTF-8");
+      if (attachments.isEmpty()) {
+         message.setDataHandler(handler);
+      } else {
+         MimeMultipart multipart = new MimeMultipart();
+         MimeBodyPart bodyPart = new MimeBodyPart();
+         bodyPart.setDataHandler(handler);
+         multipart.addBodyPart(bodyPart);
+         for (Attachment attachment : attachments) {
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new AttachmentDataSource(attachment)));
+            part.setFileName(attachment.getName());
+            multipart.addBodyPart(part);
+         }
+         message.setContent(multipart);
       }
+      if (recipients.indexOf(',') > 0)
+         message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipients));
+      else
+         message.setRecipient(Message.RecipientType.TO, new InternetAddress(recipients));
+      return message;
+   }
+
+   /**
+    * Sends an email. The body is encoded as UTF-8 while it is written to the
+    * connection, so no byte copy of the whole body is made.
+    * @param body The body, read during the send so it must not change until
+    *    this returns.
+    * @throws MailSendException If the email was not sent. Its Reason tells
+    *    whether it is worth retrying.
+    */
+   public void sendMail(String subject, CharSequence body, String sender,
+      String recipients) throws MailSendException {
+      sendMail(subject, body, sender, recipients, Collections.<Attachment> emptyList());
+   }
 
-      public OutputStream getOutputStream() throws IOException {
-         throw new IOException("Not Supported");
+   /**
+    * Sends an email with attachments.
+    * @param attachments Files sent along with the body.
+    * @throws MailSendException If the email was not sent.
+    * @see #sendMail(String, CharSequence, String, String)
+    */
+   public void sendMail(String subject, CharSequence body, String sender,
+      String recipients, List<Attachment> attachments) throws MailSendException {
+      try {
+         send(Collections.singletonList(createMessage(subject, body, sender, recipients,
+            attachments)));
+      } catch (MessagingException e) {
+         throw SmtpFailures.classify(e, -1);
       }
    }
 
+   /**
+    * Sends a batch of emails in order over one authenticated session. When
+    * the server supports it the envelope of every email is pipelined.
+    * @param mails The emails to send.
+    * @param sender The sender of every email.
+    * @return Number of emails sent, oldest first, counting one that may have
+    *    been sent when the connection dropped. Sending stops at the first
+    *    failure, the rest can be sent again later.
+    * @throws MailSendException If not even the first email was sent.
+    */
+   public int sendMails(List<OutgoingMail> mails, String sender)
+      throws MailSendException {
+      try {
+         List<MimeMessage> messages = new ArrayList<MimeMessage>(mails.size());
+         for (OutgoingMail mail : mails)
+            messages.add(createMessage(mail.getSubject(), mail.getBody(), sender, mail
+               .getRecipients(), mail.getAttachments()));
+         return send(messages);
+      } catch (MessagingException e) {
+         throw SmtpFailures.classify(e, -1);
+      }
+   }
 }
@@ -0,0 +1,172 @@
+package com.jonathanwho.mail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+import javax.mail.Authenticator;
+import javax.mail.NoSuchProviderException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Provider;
+import javax.mail.Session;
+
+/**
+ * The mail state of one account on one server: its own Session, the pool of
+ * its open connections, the permits that limit how many of its sends run
+ * at the same time and the bucket that limits their rate. Shared by every
+ * {@link GmailSender} of the account.
+ *
+ * A new password keeps the account, with its limits, and only moves it to a
+ * new Session and pool: JavaMail remembers the credentials a Session
+ * authenticated with, and the pooled connections were opened with the old
+ * ones.
+ */
+final class MailAccount extends Authenticator {
+   /** Default number of sends of one account that run at the same time */
+   static final int DEFAULT_CONCURRENCY = 2;
+   /** Default number of messages one account may send at once */
+   static final int DEFAULT_BURST = 20;
+   /** Default number of messages one account may send per hour after a burst */
+   static final int DEFAULT_PER_HOUR = 120;
+
+   /** Replaces the stock SMTP transport with one that pipelines the envelope */
+   private static final Provider PIPELINING_PROVIDER =
+      new Provider(Provider.Type.TRANSPORT, "smtp", PipeliningTransport.class.getName(),
+         "jonathanwho", "1.0");
+
+   private static final Map<String, MailAccount> accounts = new HashMap<String, MailAccount>();
+
+   private final String user;
+   private final String host;
+   private final int port;
+   private final boolean ssl;
+   private volatile String password;
+   volatile Session session;
+   volatile TransportPool pool;
+   /** Limits the send rate of the account on this device */
+   final TokenBucket rateLimit = new TokenBucket(DEFAULT_BURST, DEFAULT_PER_HOUR);
+   private final Permits permits;
+   private int concurrency;
+
+   /**
+    * Returns the account of |user| on |host|:|port|, creating it on first use
+    * and switching it to |password| when the password changed.
+    */
+   static MailAccount get(String user, String password, String host, int port, boolean ssl) {
+      String key = user + "@" + host + ":" + port + (ssl ? "/ssl" : "");
+      MailAccount account;
+      synchronized (accounts) {
+         account = accounts.get(key);
+         if (account == null) {
+            account = new MailAccount(user, password, host, port, ssl);
+            accounts.put(key, account);
+         }
+      }
+      account.setPassword(password);
+      return account;
+   }
+
+   private MailAccount(String user, String password, String host, int port, boolean ssl) {
+      this.user = user;
+      this.password = password;
+      this.host = host;
+      this.port = port;
+      this.ssl = ssl;
+      session = newSession();
+      pool = new TransportPool(session);
+      concurrency = DEFAULT_CONCURRENCY;
+      permits = new Permits(concurrency);
+      pool.setMaxIdle(Math.max(TransportPool.DEFAULT_MAX_IDLE, concurrency));
+   }
+
+   /**
+    * Switches the account to |password|. Sends already running finish on
+    * their connection, which is closed when it is handed back.
+    */
+   synchronized void setPassword(String password) {
+      if (password.equals(this.password))
+         return;
+      this.password = password;
+      TransportPool stale = pool;
+      session = newSession();
+      pool = new TransportPool(session);
+      pool.setMaxIdle(Math.max(TransportPool.DEFAULT_MAX_IDLE, concurrency));
+      stale.close();
+   }
+
+   private Session newSession() {
+      Properties props = new Properties();
+      props.setProperty("mail.transport.protocol", "smtp");
+      props.setProperty("mail.host", host);
+      props.put("mail.smtp.auth", "true");
+      props.put("mail.smtp.port", String.valueOf(port));
+      if (ssl) {
+         props.put("mail.smtp.socketFactory.port", String.valueOf(port));
+         props.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+         props.put("mail.smtp.socketFactory.fallback", "false");
+      }
+      props.setProperty("mail.smtp.quitwait", "false");
+      // sends text as 8bit instead of quoted-printable or base64 when the
+      // server supports 8BITMIME
+      props.setProperty("mail.smtp.allow8bitmime", "true");
+
+      Session session = Session.getInstance(props, this);
+      try {
+         session.setProvider(PIPELINING_PROVIDER);
+      } catch (NoSuchProviderException e) {
+         // keeps the stock SMTP transport
+      }
+      return session;
+   }
+
+   @Override
+   protected PasswordAuthentication getPasswordAuthentication() {
+      return new PasswordAuthentication(user, password);
+   }
+
+   /**
+    * Sets how many sends of this account may run at the same time. Sends
+    * already running finish, new ones wait until the account is below the
+    * new limit.
+    */
+   synchronized void setConcurrency(int limit) {
+      limit = Math.max(1, limit);
+      if (limit > concurrency)
+         permits.release(limit - concurrency);
+      else if (limit < concurrency)
+         permits.reducePermits(concurrency - limit);
+      concurrency = limit;
+      pool.setMaxIdle(Math.max(TransportPool.DEFAULT_MAX_IDLE, limit));
+   }
+
+   synchronized int getConcurrency() {
+      return concurrency;
+   }
+
+   /**
+    * Waits until a send of this account may start. Every call must be
+    * followed by {@link #endSend()}.
+    */
+   void beginSend() throws InterruptedException {
+      permits.acquire();
+   }
+
+   void endSend() {
+      permits.release();
+   }
+
+   /** A Semaphore whose number of permits can be lowered while they are held */
+   private static class Permits extends Semaphore {
+      private static final long serialVersionUID = -2284912412516424817L;
+
+      Permits(int permits) {
+         super(permits, true);
+      }
+
+      @Override
+      protected void reducePermits(int reduction) {
+         super.reducePermits(reduction);
+      }
+   }
+}
@@ -0,0 +1,112 @@
+package com.jonathanwho.mail;
+
+/**
+ * Thrown by {@link GmailSender}, and by the feedback transports built on it,
+ * when feedback could not be delivered. The {@link Reason} tells whether
+ * sending the same feedback again later can work.
+ *
+ * Depends on nothing but the JDK, so the library can refer to it without
+ * loading the mail stack.
+ */
+public class MailSendException extends Exception {
+   private static final long serialVersionUID = 3150911470520365862L;
+
+   /**
+    * Why a send failed.
+    */
+   public enum Reason {
+      /** The server could not be reached or the connection dropped */
+      CONNECT(true),
+      /** The TLS handshake failed */
+      TLS(true),
+      /** The server refused the credentials */
+      AUTH(false),
+      /** The server answered with a temporary 4xx error, e.g. rate limiting */
+      THROTTLED(true),
+      /** The server answered with a permanent 5xx error */
+      PERMANENT(false),
+      /** The account's send rate limit was reached, the send was deferred */
+      RATE_LIMITED(true),
+      /**
+       * The connection failed after the whole body was written, so the
+       * message was most likely delivered. It is not sent again, to avoid a
+       * duplicate, and callers treat it as sent.
+       */
+      UNCONFIRMED(false),
+      /** Anything else, assumed to be temporary */
+      UNKNOWN(true);
+
+      private final boolean recoverable;
+
+      private Reason(boolean recoverable) {
+         this.recoverable = recoverable;
+      }
+
+      /**
+       * @return True if sending again later may succeed.
+       */
+      public boolean isRecoverable() {
+         return recoverable;
+      }
+   }
+
+   private final Reason reason;
+   private final int returnCode;
+   private final long retryAfterMs;
+
+   /**
+    * Construct a new MailSendException.
+    * @param reason Why the send failed.
+    * @param returnCode The server's reply code, an SMTP reply or an HTTP
+    *    status, or -1 if there was none.
+    * @param cause The underlying exception.
+    */
+   public MailSendException(Reason reason, int returnCode, Throwable cause) {
+      this(reason, returnCode, cause, -1);
+   }
+
+   /**
+    * Construct a new MailSendException for a send that can be made again
+    * after a known delay.
+    * @param retryAfterMs How long to wait before sending again, or -1 if
+    *    unknown.
+    * @see #MailSendException(Reason, int, Throwable)
+    */
+   public MailSendException(Reason reason, int returnCode, Throwable cause, long retryAfterMs) {
+      super(reason + (returnCode > 0 ? " (" + returnCode + ")" : "")
+         + (retryAfterMs >= 0 ? ", retry in " + retryAfterMs + " ms" : "")
+         + (cause == null ? "" : ": " + cause.getMessage()), cause);
+      this.reason = reason;
+      this.returnCode = returnCode;
+      this.retryAfterMs = retryAfterMs;
+   }
+
+   /**
+    * @return Why the send failed.
+    */
+   public Reason getReason() {
+      return reason;
+   }
+
+   /**
+    * @return The server's reply code, or -1 if there was none.
+    */
+   public int getReturnCode() {
+      return returnCode;
+   }
+
+   /**
+    * @return How long to wait before sending again, or -1 if unknown and
+    *    the usual backoff applies.
+    */
+   public long getRetryAfterMs() {
+      return retryAfterMs;
+   }
+
+   /**
+    * @return True if sending again later may succeed.
+    */
+   public boolean isRecoverable() {
+      return reason.isRecoverable();
+   }
+}
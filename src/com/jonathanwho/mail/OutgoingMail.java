@@ -0,0 +1,53 @@
+package com.jonathanwho.mail;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One email of a batch sent with {@link GmailSender#sendMails(java.util.List, String)}.
+ */
+public class OutgoingMail {
+   private final String subject;
+   private final CharSequence body;
+   private final String recipients;
+   private final List<Attachment> attachments;
+
+   /**
+    * Construct a new OutgoingMail.
+    * @param subject Subject of the email.
+    * @param body The body, read during the send so it must not change until
+    *    the batch is sent.
+    * @param recipients Comma separated recipients.
+    */
+   public OutgoingMail(String subject, CharSequence body, String recipients) {
+      this(subject, body, recipients, Collections.<Attachment> emptyList());
+   }
+
+   /**
+    * Construct a new OutgoingMail with attachments.
+    * @param attachments Files sent along with the body.
+    */
+   public OutgoingMail(String subject, CharSequence body, String recipients,
+      List<Attachment> attachments) {
+      this.subject = subject;
+      this.body = body;
+      this.recipients = recipients;
+      this.attachments = attachments;
+   }
+
+   public String getSubject() {
+      return subject;
+   }
+
+   public CharSequence getBody() {
+      return body;
+   }
+
+   public String getRecipients() {
+      return recipients;
+   }
+
+   public List<Attachment> getAttachments() {
+      return attachments;
+   }
+}
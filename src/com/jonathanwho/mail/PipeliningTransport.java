@@ -0,0 +1,266 @@
+package com.jonathanwho.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimePart;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * An SMTPTransport that pipelines the envelope (RFC 2920) when the server
+ * advertises PIPELINING: MAIL FROM and every RCPT TO are written back to back
+ * and their replies are read together, so the envelope costs one round trip
+ * instead of one per command. Servers without PIPELINING get the plain
+ * JavaMail behavior. When JavaMail sends text parts as 8bit, MAIL FROM
+ * declares BODY=8BITMIME.
+ *
+ * The time spent in each phase of a connect and a send is added to the
+ * calling thread's {@link SendTimings}.
+ */
+public class PipeliningTransport extends SMTPTransport {
+   private static final int OK = 250;
+   private static final int FORWARDED = 251;
+   private static final int DEFAULT_PORT = 25;
+   private static final String SSL_SOCKET_FACTORY = "javax.net.ssl.SSLSocketFactory";
+
+   private Message envelopeMessage;
+   private Address[] envelopeRecipients;
+   private boolean envelopeSent;
+   /** True once the whole body of the message being sent was written */
+   private boolean dataAccepted;
+   private long ehloEnd;
+   private long dataStart;
+
+   public PipeliningTransport(Session session, URLName urlname) {
+      super(session, urlname);
+   }
+
+   /**
+    * Connects like {@link #connect()}, but opens the socket itself so that the
+    * TCP connect and the TLS handshake are timed apart. TLS is used when the
+    * session's socket factory is the SSLSocketFactory.
+    * @throws MessagingException If the connection cannot be opened.
+    */
+   public synchronized void connectTimed() throws MessagingException {
+      String host = session.getProperty("mail.smtp.host");
+      if (host == null)
+         host = session.getProperty("mail.host");
+      String portValue = session.getProperty("mail.smtp.port");
+      int port = portValue == null ? DEFAULT_PORT : Integer.parseInt(portValue);
+      boolean tls = SSL_SOCKET_FACTORY.equals(session.getProperty("mail.smtp.socketFactory.class"));
+
+      SendTimings timings = SendTimings.forCurrentThread();
+      Socket socket = new Socket();
+      try {
+         long start = System.nanoTime();
+         socket.connect(new InetSocketAddress(host, port));
+         long connected = System.nanoTime();
+         timings.connectNanos += connected - start;
+         if (tls) {
+            SSLSocket sslSocket =
+               (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket,
+                  host, port, true);
+            sslSocket.startHandshake();
+            timings.tlsNanos += System.nanoTime() - connected;
+            socket = sslSocket;
+         }
+         connect(socket);
+      } catch (IOException e) {
+         closeQuietly(socket);
+         throw new MessagingException("Could not connect to " + host + ":" + port, e);
+      } catch (MessagingException e) {
+         closeQuietly(socket);
+         throw e;
+      }
+   }
+
+   @Override
+   protected boolean protocolConnect(String host, int port, String user, String password)
+      throws MessagingException {
+      long start = System.nanoTime();
+      ehloEnd = 0;
+      boolean connected = super.protocolConnect(host, port, user, password);
+      // the first attempt returns early when the password is still to be asked for
+      if (connected && ehloEnd != 0) {
+         SendTimings timings = SendTimings.forCurrentThread();
+         timings.connectNanos += ehloEnd - start;
+         timings.authNanos += System.nanoTime() - ehloEnd;
+      }
+      return connected;
+   }
+
+   @Override
+   protected boolean ehlo(String domain) throws MessagingException {
+      try {
+         return super.ehlo(domain);
+      } finally {
+         ehloEnd = System.nanoTime();
+      }
+   }
+
+   @Override
+   protected void helo(String domain) throws MessagingException {
+      try {
+         super.helo(domain);
+      } finally {
+         ehloEnd = System.nanoTime();
+      }
+   }
+
+   @Override
+   public synchronized void sendMessage(Message message, Address[] addresses)
+      throws MessagingException, SendFailedException {
+      envelopeMessage = message;
+      envelopeRecipients = addresses;
+      envelopeSent = false;
+      dataAccepted = false;
+      try {
+         super.sendMessage(message, addresses);
+      } finally {
+         envelopeMessage = null;
+         envelopeRecipients = null;
+      }
+   }
+
+   @Override
+   protected void mailFrom() throws MessagingException {
+      if (envelopeMessage == null) {
+         super.mailFrom();
+         return;
+      }
+      // JavaMail converted text parts to 8bit, RFC 6152 wants it declared
+      String body =
+         supportsExtension("8BITMIME") && has8BitPart(envelopeMessage) ? " BODY=8BITMIME" : "";
+      if (!supportsExtension("PIPELINING")) {
+         if (body.length() == 0) {
+            super.mailFrom();
+         } else {
+            int reply = simpleCommand("MAIL FROM:<" + sender() + ">" + body);
+            if (reply != OK) {
+               String response = getLastServerResponse();
+               simpleCommand("RSET");
+               throw new SMTPSendFailedException("MAIL FROM", reply, response, null, null,
+                  envelopeRecipients, null);
+            }
+         }
+         return;
+      }
+
+      sendCommand("MAIL FROM:<" + sender() + ">" + body);
+      for (Address recipient : envelopeRecipients)
+         sendCommand("RCPT TO:<" + ((InternetAddress) recipient).getAddress() + ">");
+
+      // reads the replies of the whole group
+      int mailReply = readServerResponse();
+      String mailResponse = getLastServerResponse();
+      List<Address> accepted = new ArrayList<Address>(envelopeRecipients.length);
+      List<Address> rejected = new ArrayList<Address>();
+      int rejectReply = 0;
+      String rejectResponse = null;
+      for (Address recipient : envelopeRecipients) {
+         int reply = readServerResponse();
+         if (reply == OK || reply == FORWARDED) {
+            accepted.add(recipient);
+         } else {
+            rejected.add(recipient);
+            rejectReply = reply;
+            rejectResponse = getLastServerResponse();
+         }
+      }
+
+      if (mailReply != OK) {
+         simpleCommand("RSET");
+         throw new SMTPSendFailedException("MAIL FROM", mailReply, mailResponse, null, null,
+            envelopeRecipients, null);
+      }
+      if (!rejected.isEmpty()) {
+         simpleCommand("RSET");
+         throw new SMTPSendFailedException("RCPT TO", rejectReply, rejectResponse, null, null,
+            accepted.toArray(new Address[accepted.size()]), rejected.toArray(new Address[rejected
+               .size()]));
+      }
+      envelopeSent = true;
+   }
+
+   /**
+    * @return The address of the envelope message's sender, or an empty
+    *    string for a null sender.
+    */
+   private String sender() throws MessagingException {
+      Address[] from = envelopeMessage.getFrom();
+      return from != null && from.length > 0 ? ((InternetAddress) from[0]).getAddress() : "";
+   }
+
+   /**
+    * @return True if |part|, or one of its parts, is sent with the 8bit
+    *    transfer encoding.
+    */
+   private static boolean has8BitPart(Part part) throws MessagingException {
+      if (part.isMimeType("multipart/*")) {
+         try {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+               if (has8BitPart(multipart.getBodyPart(i)))
+                  return true;
+            }
+         } catch (IOException e) {
+            // the content was readable when the message was converted
+         }
+         return false;
+      }
+      return part instanceof MimePart && "8bit".equalsIgnoreCase(((MimePart) part).getEncoding());
+   }
+
+   @Override
+   protected void rcptTo() throws MessagingException {
+      if (!envelopeSent)
+         super.rcptTo();
+   }
+
+   @Override
+   protected OutputStream data() throws MessagingException {
+      dataStart = System.nanoTime();
+      return super.data();
+   }
+
+   /**
+    * @return True if the whole body of the last message sent was written, so
+    *    the server may have queued it even though the send failed.
+    */
+   synchronized boolean isDataAccepted() {
+      return dataAccepted;
+   }
+
+   @Override
+   protected void finishData() throws IOException, MessagingException {
+      // the body is out, only the terminating dot and its reply are left
+      dataAccepted = true;
+      super.finishData();
+      SendTimings.forCurrentThread().dataNanos += System.nanoTime() - dataStart;
+   }
+
+   private static void closeQuietly(Socket socket) {
+      try {
+         socket.close();
+      } catch (IOException e) {
+         // the connection is being discarded anyway
+      }
+   }
+}
@@ -0,0 +1,67 @@
+package com.jonathanwho.mail;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for retrying failed sends.
+ *
+ * The n-th retry waits a random time between half and all of
+ * min(maxDelay, initialDelay * 2^(n-1)), so devices that failed together
+ * do not come back together and make a throttling episode worse.
+ */
+public class RetryPolicy {
+   /** Default delay cap before the first retry */
+   public static final long DEFAULT_INITIAL_DELAY_MS = 5 * 1000;
+   /** Default cap of any delay */
+   public static final long DEFAULT_MAX_DELAY_MS = 30 * 60 * 1000;
+   /** Default number of attempts, including the first one */
+   public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+   private final long initialDelayMs;
+   private final long maxDelayMs;
+   private final int maxAttempts;
+   private final Random random;
+
+   /**
+    * Construct a new RetryPolicy with the default delays.
+    */
+   public RetryPolicy() {
+      this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS);
+   }
+
+   /**
+    * Construct a new RetryPolicy.
+    * @param initialDelayMs Delay cap before the first retry.
+    * @param maxDelayMs Cap of any delay.
+    * @param maxAttempts Number of attempts, including the first one.
+    */
+   public RetryPolicy(long initialDelayMs, long maxDelayMs, int maxAttempts) {
+      this.initialDelayMs = initialDelayMs;
+      this.maxDelayMs = maxDelayMs;
+      this.maxAttempts = maxAttempts;
+      random = new Random();
+   }
+
+   /**
+    * @param error Why the last attempt failed.
+    * @param attempts Number of attempts made so far.
+    * @return True if the send should be attempted again.
+    */
+   public boolean shouldRetry(MailSendException error, int attempts) {
+      return error.isRecoverable() && attempts < maxAttempts;
+   }
+
+   /**
+    * @param attempts Number of attempts made so far, at least 1.
+    * @return How long to wait before the next attempt.
+    */
+   public long delayMs(int attempts) {
+      int shift = Math.min(Math.max(attempts - 1, 0), 30);
+      long cap = Math.min(maxDelayMs, initialDelayMs << shift);
+      if (cap <= 0)
+         cap = maxDelayMs;
+      synchronized (random) {
+         return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+      }
+   }
+}
@@ -0,0 +1,73 @@
+package com.jonathanwho.mail;
+
+/**
+ * Time spent in each phase of the SMTP sends made by one thread, filled in by
+ * {@link PipeliningTransport}. Phases add up until {@link #reset()}, so a
+ * batch sent over one session, or a send that had to reconnect, reports the
+ * sum. A send over a pooled connection reports no connect, TLS or AUTH time.
+ *
+ * Every thread has one instance that is reused, so recording does not
+ * allocate.
+ */
+public final class SendTimings {
+   private static final ThreadLocal<SendTimings> timings = new ThreadLocal<SendTimings>() {
+      @Override
+      protected SendTimings initialValue() {
+         return new SendTimings();
+      }
+   };
+
+   long connectNanos;
+   long tlsNanos;
+   long authNanos;
+   long dataNanos;
+
+   private SendTimings() {
+   }
+
+   /**
+    * @return The timings of the calling thread.
+    */
+   public static SendTimings forCurrentThread() {
+      return timings.get();
+   }
+
+   /**
+    * Clears every phase, call before a send.
+    */
+   public void reset() {
+      connectNanos = 0;
+      tlsNanos = 0;
+      authNanos = 0;
+      dataNanos = 0;
+   }
+
+   /**
+    * @return Time spent on the TCP connect, the server greeting and EHLO.
+    */
+   public long getConnectNanos() {
+      return connectNanos;
+   }
+
+   /**
+    * @return Time spent on the TLS handshake.
+    */
+   public long getTlsNanos() {
+      return tlsNanos;
+   }
+
+   /**
+    * @return Time spent authenticating.
+    */
+   public long getAuthNanos() {
+      return authNanos;
+   }
+
+   /**
+    * @return Time spent transmitting message data, from DATA to the server's
+    *    reply to the final dot.
+    */
+   public long getDataNanos() {
+      return dataNanos;
+   }
+}
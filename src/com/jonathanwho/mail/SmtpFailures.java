@@ -0,0 +1,74 @@
+package com.jonathanwho.mail;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.SendFailedException;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import com.jonathanwho.mail.MailSendException.Reason;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Turns the exceptions of JavaMail into {@link MailSendException}s. Kept
+ * apart from MailSendException so that only a send loads the JavaMail
+ * classes it refers to.
+ */
+final class SmtpFailures {
+
+   private SmtpFailures() {
+   }
+
+   /**
+    * Classifies an exception thrown while sending.
+    * @param error The exception.
+    * @param lastReturnCode The last SMTP reply code seen on the connection,
+    *    or -1 if unknown.
+    * @return |error| wrapped with its Reason.
+    */
+   static MailSendException classify(Exception error, int lastReturnCode) {
+      if (error instanceof MailSendException)
+         return (MailSendException) error;
+
+      int returnCode = lastReturnCode;
+      boolean invalidAddresses = false;
+      Throwable tls = null;
+      Throwable io = null;
+      for (Throwable t = error; t != null; t = t.getCause()) {
+         if (t instanceof AuthenticationFailedException)
+            return new MailSendException(Reason.AUTH, returnCode, error);
+         if (t instanceof SMTPSendFailedException)
+            returnCode = ((SMTPSendFailedException) t).getReturnCode();
+         else if (t instanceof SMTPAddressFailedException)
+            returnCode = ((SMTPAddressFailedException) t).getReturnCode();
+         if (t instanceof SendFailedException) {
+            Object[] invalid = ((SendFailedException) t).getInvalidAddresses();
+            invalidAddresses |= invalid != null && invalid.length > 0;
+         }
+         if (t instanceof SSLPeerUnverifiedException || t instanceof CertificateException)
+            return new MailSendException(Reason.PERMANENT, returnCode, error);
+         if (t instanceof SSLException && tls == null)
+            tls = t;
+         else if (t instanceof IOException && io == null)
+            io = t;
+         if (t.getCause() == t)
+            break;
+      }
+
+      if (returnCode >= 500 && returnCode < 600)
+         return new MailSendException(returnCode == 535 ? Reason.AUTH : Reason.PERMANENT,
+            returnCode, error);
+      if (returnCode >= 400 && returnCode < 500)
+         return new MailSendException(Reason.THROTTLED, returnCode, error);
+      if (invalidAddresses)
+         return new MailSendException(Reason.PERMANENT, returnCode, error);
+      if (tls != null)
+         return new MailSendException(Reason.TLS, returnCode, error);
+      if (io != null)
+         return new MailSendException(Reason.CONNECT, returnCode, error);
+      return new MailSendException(Reason.UNKNOWN, returnCode, error);
+   }
+}
@@ -0,0 +1,94 @@
+package com.jonathanwho.mail;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of sends of one account: the bucket holds up to |burst|
+ * tokens, one is added every |interval| and every message sent takes one.
+ * A device can send a burst right away, then no faster than the sustained
+ * rate, which keeps it below the rate at which Gmail throttles and locks
+ * accounts.
+ */
+final class TokenBucket {
+   private int burst;
+   private long intervalNanos;
+   /** Tokens available at |updated| */
+   private double tokens;
+   private long updated;
+
+   /**
+    * Construct a new TokenBucket, full.
+    * @param burst Maximum number of tokens, 0 for no limit.
+    * @param perHour Number of tokens added per hour.
+    */
+   TokenBucket(int burst, int perHour) {
+      updated = System.nanoTime();
+      setRate(burst, perHour);
+      tokens = burst;
+   }
+
+   /**
+    * Changes the limit. The tokens already in the bucket are kept, up to the
+    * new burst.
+    * @param burst Maximum number of tokens, 0 for no limit.
+    * @param perHour Number of tokens added per hour, at least 1.
+    */
+   synchronized void setRate(int burst, int perHour) {
+      refill();
+      this.burst = Math.max(0, burst);
+      intervalNanos = TimeUnit.HOURS.toNanos(1) / Math.max(1, perHour);
+      tokens = Math.min(tokens, this.burst);
+   }
+
+   synchronized int getBurst() {
+      return burst;
+   }
+
+   synchronized int getPerHour() {
+      return (int) (TimeUnit.HOURS.toNanos(1) / intervalNanos);
+   }
+
+   /**
+    * Takes a token for each message that may be sent now.
+    * @param wanted Number of messages waiting to be sent.
+    * @return Number of tokens taken, between 0 and |wanted|.
+    */
+   synchronized int take(int wanted) {
+      if (burst == 0)
+         return wanted;
+      refill();
+      int taken = Math.min(wanted, (int) tokens);
+      tokens -= taken;
+      return taken;
+   }
+
+   /**
+    * Gives back tokens taken for messages that were not sent.
+    * @param unused Number of tokens, up to what {@link #take(int)} returned.
+    */
+   synchronized void refund(int unused) {
+      if (burst == 0 || unused <= 0)
+         return;
+      refill();
+      tokens = Math.min(burst, tokens + unused);
+   }
+
+   /**
+    * @return How long until the next token is available, 0 if one is.
+    */
+   synchronized long delayMs() {
+      if (burst == 0)
+         return 0;
+      refill();
+      if (tokens >= 1)
+         return 0;
+      return TimeUnit.NANOSECONDS.toMillis((long) ((1 - tokens) * intervalNanos)) + 1;
+   }
+
+   private void refill() {
+      long now = System.nanoTime();
+      if (burst > 0)
+         tokens = Math.min(burst, tokens + (double) (now - updated) / intervalNanos);
+      updated = now;
+   }
+}
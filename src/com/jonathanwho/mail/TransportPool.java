@@ -0,0 +1,155 @@
+package com.jonathanwho.mail;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Keeps authenticated SMTP Transports open so that consecutive sends skip the
+ * TCP connect, TLS handshake and AUTH round trip.
+ *
+ * Idle transports are checked with a NOOP (via {@link Transport#isConnected()})
+ * before they are handed out and are closed once they have been idle for longer
+ * than the idle timeout.
+ */
+public class TransportPool {
+   /** Default time an unused connection is kept open, long enough to outlast typing */
+   public static final long DEFAULT_IDLE_TIMEOUT_MS = 3 * 60 * 1000;
+   /** Default number of idle connections kept open */
+   public static final int DEFAULT_MAX_IDLE = 2;
+
+   private final Session session;
+   private final LinkedList<IdleTransport> idle;
+   private long idleTimeoutMs;
+   private int maxIdle;
+   /** True once the pool was closed, connections handed back are then closed too */
+   private boolean closed;
+
+   /**
+    * Construct a new TransportPool.
+    * @param session The session whose properties and Authenticator are used to
+    *    open new connections.
+    */
+   public TransportPool(Session session) {
+      this.session = session;
+      idle = new LinkedList<IdleTransport>();
+      idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+      maxIdle = DEFAULT_MAX_IDLE;
+   }
+
+   /**
+    * Sets how long an unused connection is kept open.
+    * @param idleTimeoutMs Idle time in milliseconds.
+    */
+   public synchronized void setIdleTimeout(long idleTimeoutMs) {
+      this.idleTimeoutMs = idleTimeoutMs;
+   }
+
+   /**
+    * Sets how many unused connections are kept open.
+    * @param maxIdle Maximum number of idle connections.
+    */
+   public synchronized void setMaxIdle(int maxIdle) {
+      this.maxIdle = maxIdle;
+   }
+
+   /**
+    * Returns a connected, authenticated Transport. An idle connection is reused
+    * if one is still alive, otherwise a new one is opened.
+    * @return A connected Transport that must be handed back with
+    *    {@link #release(Transport)} or {@link #invalidate(Transport)}.
+    * @throws MessagingException If a new connection cannot be opened.
+    */
+   public Transport borrow() throws MessagingException {
+      Transport transport;
+      while ((transport = pollIdle()) != null) {
+         if (transport.isConnected()) // issues a NOOP
+            return transport;
+         closeQuietly(transport);
+      }
+      transport = session.getTransport("smtp");
+      if (transport instanceof PipeliningTransport)
+         ((PipeliningTransport) transport).connectTimed();
+      else
+         transport.connect();
+      return transport;
+   }
+
+   /**
+    * Hands a healthy Transport back to the pool for reuse.
+    * @param transport A Transport obtained from {@link #borrow()}.
+    */
+   public void release(Transport transport) {
+      Transport overflow = null;
+      synchronized (this) {
+         evictIdle();
+         if (!closed && idle.size() < maxIdle)
+            idle.addFirst(new IdleTransport(transport, System.currentTimeMillis()));
+         else
+            overflow = transport;
+      }
+      if (overflow != null)
+         closeQuietly(overflow);
+   }
+
+   /**
+    * Closes a Transport that failed and must not be reused.
+    * @param transport A Transport obtained from {@link #borrow()}.
+    */
+   public void invalidate(Transport transport) {
+      closeQuietly(transport);
+   }
+
+   /**
+    * Closes every connection that has been idle for longer than the idle timeout.
+    */
+   public synchronized void evictIdle() {
+      long now = System.currentTimeMillis();
+      Iterator<IdleTransport> iterator = idle.iterator();
+      while (iterator.hasNext()) {
+         IdleTransport entry = iterator.next();
+         if (now - entry.since > idleTimeoutMs) {
+            iterator.remove();
+            closeQuietly(entry.transport);
+         }
+      }
+   }
+
+   /**
+    * Closes every idle connection, and every connection handed back later.
+    */
+   public synchronized void close() {
+      closed = true;
+      for (IdleTransport entry : idle)
+         closeQuietly(entry.transport);
+      idle.clear();
+   }
+
+   private synchronized Transport pollIdle() {
+      evictIdle();
+      IdleTransport entry = idle.poll();
+      return entry == null ? null : entry.transport;
+   }
+
+   private static void closeQuietly(Transport transport) {
+      try {
+         transport.close();
+      } catch (MessagingException e) {
+         // the connection is being discarded anyway
+      }
+   }
+
+   /** A pooled Transport and the time it was returned to the pool */
+   private static class IdleTransport {
+      final Transport transport;
+      final long since;
+
+      IdleTransport(Transport transport, long since) {
+         this.transport = transport;
+         this.since = since;
+      }
+   }
+}
@@ -0,0 +1,49 @@
+package com.jonathanwho.mirandafeedback;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+/**
+ * Reads the connectivity and power state of the device from the system
+ * services.
+ */
+class AndroidDeviceState implements SendScheduler.DeviceState {
+   private final Context context;
+
+   AndroidDeviceState(Context context) {
+      this.context = context;
+   }
+
+   public boolean isConnected() {
+      NetworkInfo networkInfo = getActiveNetworkInfo();
+      return networkInfo != null && networkInfo.isConnected();
+   }
+
+   /**
+    * Wi-Fi and Ethernet count as unmetered. ConnectivityManager only knows
+    * better from API 16 on.
+    */
+   public boolean isUnmetered() {
+      NetworkInfo networkInfo = getActiveNetworkInfo();
+      if (networkInfo == null || !networkInfo.isConnected())
+         return false;
+      int type = networkInfo.getType();
+      return type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET;
+   }
+
+   public boolean isCharging() {
+      // the battery broadcast is sticky, so no receiver is needed to read it
+      Intent battery =
+         context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+      return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+   }
+
+   private NetworkInfo getActiveNetworkInfo() {
+      return ((ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE))
+         .getActiveNetworkInfo();
+   }
+}
@@ -0,0 +1,23 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.ByteArrayOutputStream;
+
+import com.jonathanwho.mail.Attachment;
+
+/**
+ * Collects the encoded content of an attachment and hands over its buffer,
+ * instead of the copy {@link #toByteArray()} would make.
+ */
+class AttachmentOutputStream extends ByteArrayOutputStream {
+   AttachmentOutputStream(int size) {
+      super(size);
+   }
+
+   /**
+    * @return An attachment over what was written so far. Nothing may be
+    *    written afterwards.
+    */
+   synchronized Attachment toAttachment(String name, String mimeType) {
+      return new Attachment(name, mimeType, buf, count);
+   }
+}
@@ -0,0 +1,17 @@
+package com.jonathanwho.mirandafeedback;
+
+/**
+ * What became of submitted feedback.
+ */
+public enum DeliveryResult {
+   /** Delivered by the transport */
+   SENT,
+   /** Queued in the outbox until a network is available */
+   QUEUED,
+   /** Queued in the outbox until the rate limit or the {@link SendPolicy} allows it */
+   DEFERRED,
+   /** Dropped as identical to feedback sent recently */
+   DUPLICATE,
+   /** Not delivered and not queued */
+   FAILED
+}
@@ -0,0 +1,184 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Remembers the feedback recently sent by one account, so that a double tap
+ * on Send or the same complaint submitted again within the window is dropped
+ * before it reaches the transport.
+ *
+ * Feedback is identified by a 64-bit hash of its normalized form content:
+ * each field's label and value, trimmed, lowercased and with runs of
+ * whitespace collapsed. Hashes are kept in a bounded LRU map, so a check is a
+ * single lookup, and written to a small file after every change so they
+ * survive the process. Everything but {@link #hash(List, CharSequence[])}
+ * reads or writes the file, so it runs on the send thread.
+ */
+class DuplicateFilter {
+   /** Default time during which the same feedback is dropped */
+   static final long DEFAULT_WINDOW_MS = 10 * 60 * 1000;
+   /** Default number of hashes remembered */
+   static final int DEFAULT_MAX_ENTRIES = 64;
+
+   private static final String TAG = "DuplicateFilter";
+   private static final int FILE_VERSION = 1;
+   private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+   private static final long FNV_PRIME = 0x100000001b3L;
+
+   private final File file;
+   private long windowMs = DEFAULT_WINDOW_MS;
+   private int maxEntries = DEFAULT_MAX_ENTRIES;
+   /** Time of the last send of each hash, least recently sent first */
+   private LinkedHashMap<Long, Long> sent;
+
+   /**
+    * Construct a new DuplicateFilter. The file is not read until the first
+    * check.
+    * @param file Where the hashes are stored.
+    */
+   DuplicateFilter(File file) {
+      this.file = file;
+   }
+
+   /**
+    * @param windowMs How long the same feedback is dropped after it was
+    *    sent, 0 to send everything.
+    * @param maxEntries Number of different submissions remembered.
+    */
+   synchronized void setWindow(long windowMs, int maxEntries) {
+      this.windowMs = windowMs;
+      this.maxEntries = Math.max(1, maxEntries);
+   }
+
+   /**
+    * Hashes the content of a form. Cheap enough for the main thread.
+    * @param labels Labels of the custom fields.
+    * @param values The feedback, then the value of every custom field.
+    * @return A hash equal for forms that differ only in case and whitespace.
+    */
+   static long hash(List<String> labels, CharSequence[] values) {
+      long hash = FNV_OFFSET_BASIS;
+      for (int i = 0; i < values.length; i++) {
+         if (i > 0)
+            hash = update(hash, labels.get(i - 1), '\u0001');
+         hash = update(hash, values[i], '\u0002');
+      }
+      return hash;
+   }
+
+   /**
+    * Folds the normalized |text| and a |separator| into |hash|, FNV-1a.
+    */
+   private static long update(long hash, CharSequence text, char separator) {
+      boolean space = false;
+      boolean started = false;
+      int length = text.length();
+      for (int i = 0; i < length; i++) {
+         char c = text.charAt(i);
+         if (Character.isWhitespace(c)) {
+            space = started;
+            continue;
+         }
+         if (space) {
+            hash = (hash ^ ' ') * FNV_PRIME;
+            space = false;
+         }
+         started = true;
+         c = Character.toLowerCase(c);
+         hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+         hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+      }
+      return (hash ^ separator) * FNV_PRIME;
+   }
+
+   /**
+    * Records feedback about to be sent, unless the same feedback was sent
+    * within the window.
+    * @param hash The hash of the feedback.
+    * @return False if the feedback is a duplicate and must be dropped.
+    */
+   synchronized boolean admit(long hash) {
+      if (windowMs <= 0)
+         return true;
+      load();
+      long now = System.currentTimeMillis();
+      Long last = sent.get(hash);
+      if (last != null && now - last < windowMs && now >= last)
+         return false;
+      sent.remove(hash); // moves it to the end as the most recent
+      sent.put(hash, now);
+      while (sent.size() > maxEntries)
+         sent.remove(sent.keySet().iterator().next());
+      save();
+      return true;
+   }
+
+   /**
+    * Forgets feedback that could not be sent, so that it can be submitted
+    * again.
+    * @param hash The hash passed to {@link #admit(long)}.
+    */
+   synchronized void forget(long hash) {
+      if (sent != null && sent.remove(hash) != null)
+         save();
+   }
+
+   private void load() {
+      if (sent != null)
+         return;
+      sent = new LinkedHashMap<Long, Long>();
+      try {
+         DataInputStream in = new DataInputStream(new FileInputStream(file));
+         try {
+            if (in.readByte() != FILE_VERSION)
+               return;
+            for (int count = in.readInt(); count > 0; count--)
+               sent.put(in.readLong(), in.readLong());
+         } finally {
+            in.close();
+         }
+      } catch (FileNotFoundException e) {
+         // nothing sent yet
+      } catch (IOException e) {
+         Log.w(TAG, "Dropping unreadable hashes", e);
+         sent.clear();
+      }
+   }
+
+   /**
+    * Writes the hashes to a temporary file and renames it over the old one,
+    * so a crash leaves either version whole.
+    */
+   private void save() {
+      File temp = new File(file.getPath() + ".tmp");
+      try {
+         DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+         try {
+            out.writeByte(FILE_VERSION);
+            out.writeInt(sent.size());
+            for (Map.Entry<Long, Long> entry : sent.entrySet()) {
+               out.writeLong(entry.getKey());
+               out.writeLong(entry.getValue());
+            }
+         } finally {
+            out.close();
+         }
+         if (!temp.renameTo(file))
+            throw new IOException("Cannot rename " + temp);
+      } catch (IOException e) {
+         // still filters duplicates for this process
+         Log.w(TAG, "Cannot save hashes", e);
+      }
+   }
+}
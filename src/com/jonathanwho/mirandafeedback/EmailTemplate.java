@@ -0,0 +1,174 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.List;
+
+/**
+ * The layout of a feedback email, compiled once for a set of field labels.
+ *
+ * Compiling escapes the labels and joins them with the surrounding markup,
+ * so formatting a response only appends one precomputed prefix and one
+ * value per row into a single presized buffer. HTML declares its styles
+ * once in a style block and puts every row on its own line. The same pass
+ * can write the rows of the {@link FeedbackData} part as well.
+ *
+ * HTML:
+ *
+ * _____________________________________
+ * |{Feedback Label} | {Feedback Input}|
+ * _____________________________________
+ * |{Feedback Label} | {Feedback Input}|
+ * _____________________________________
+ *
+ * Plain text:
+ *
+ * {Feedback Label}:
+ *    {Feedback Input}
+ */
+public class EmailTemplate {
+   /** Label of the always present feedback field */
+   public static final String FEEDBACK_LABEL = "Feedback";
+
+   /** The styles are declared once instead of inline on every row */
+   static final String HTML_OPEN =
+      "<style>table{width:600px;border:1px solid black}"
+         + "th{width:25%;background:#efefef;text-align:left}</style>\n<table>\n";
+   private static final String HTML_ROW_START = "<tr><th>";
+   private static final String HTML_ROW_MIDDLE = "</th><td>";
+   /** Rows end lines, so that a short body stays under the 998 byte line limit of 8bit MIME */
+   private static final String HTML_ROW_END = "</td></tr>\n";
+   static final String HTML_CLOSE = "</table>";
+   private static final String TEXT_ROW_MIDDLE = ":\n\t";
+   private static final String TEXT_ROW_END = "\n";
+
+   private final boolean textEmail;
+   private final String open;
+   private final String[] rowPrefixes;
+   /** The label of every row, as the start of a {@link FeedbackData} row */
+   private final String[] dataPrefixes;
+   private final String rowEnd;
+   private final String close;
+   /** Length of everything but the values */
+   private final int fixedLength;
+
+   /**
+    * Compiles a template.
+    * @param labels Labels of the custom fields, the feedback field comes first
+    *    and is added automatically.
+    * @param textEmail True for a plain text email, false for HTML.
+    */
+   public EmailTemplate(List<String> labels, boolean textEmail) {
+      this.textEmail = textEmail;
+      open = textEmail ? "" : HTML_OPEN;
+      rowEnd = textEmail ? TEXT_ROW_END : HTML_ROW_END;
+      close = textEmail ? "" : HTML_CLOSE;
+
+      rowPrefixes = new String[labels.size() + 1];
+      dataPrefixes = new String[rowPrefixes.length];
+      int length = open.length() + close.length();
+      for (int i = 0; i < rowPrefixes.length; i++) {
+         String label = i == 0 ? FEEDBACK_LABEL : labels.get(i - 1);
+         if (textEmail) {
+            rowPrefixes[i] = label + TEXT_ROW_MIDDLE;
+         } else {
+            StringBuilder prefix = new StringBuilder(HTML_ROW_START);
+            HtmlEscaper.escape(label, prefix).append(HTML_ROW_MIDDLE);
+            rowPrefixes[i] = prefix.toString();
+         }
+         length += rowPrefixes[i].length() + rowEnd.length();
+         StringBuilder dataPrefix =
+            new StringBuilder(i == 0 ? "[" : FeedbackData.ROW_SEPARATOR + "[");
+         FeedbackData.escape(label, dataPrefix).append(',');
+         dataPrefixes[i] = dataPrefix.toString();
+      }
+      fixedLength = length;
+   }
+
+   /**
+    * @return True if this template formats plain text, false for HTML.
+    */
+   public boolean isTextEmail() {
+      return textEmail;
+   }
+
+   /**
+    * @return Number of values {@link #format(CharSequence[])} expects,
+    *    including the feedback field.
+    */
+   public int getFieldCount() {
+      return rowPrefixes.length;
+   }
+
+   /**
+    * Formats a response.
+    * @param values The feedback text followed by the value of each custom
+    *    field, in the order the labels were given. Missing values are left
+    *    blank.
+    * @return The email body.
+    */
+   public String format(CharSequence... values) {
+      return formatTo(new StringBuilder(estimateLength(values)), values).toString();
+   }
+
+   /**
+    * Formats a response into |out|.
+    * @see #format(CharSequence[])
+    * @return |out|
+    */
+   public StringBuilder formatTo(StringBuilder out, CharSequence... values) {
+      return formatTo(out, null, values);
+   }
+
+   /**
+    * Formats a response into |out| and, in the same pass over the values,
+    * its fields into |data|.
+    * @param data A document started by {@link FeedbackData#open(String, long, int)},
+    *    or null.
+    * @see #format(CharSequence[])
+    * @return |out|
+    */
+   public StringBuilder formatTo(StringBuilder out, StringBuilder data, CharSequence... values) {
+      out.append(open);
+      for (int i = 0; i < rowPrefixes.length; i++) {
+         out.append(rowPrefixes[i]);
+         CharSequence value = i < values.length ? values[i] : null;
+         if (value != null) {
+            if (textEmail)
+               out.append(value);
+            else
+               HtmlEscaper.escape(value, out);
+         }
+         out.append(rowEnd);
+         if (data != null)
+            FeedbackData.escape(value == null ? "" : value, data.append(dataPrefixes[i]))
+               .append(']');
+      }
+      return out.append(close);
+   }
+
+   /**
+    * Appends the rows of an HTML body, without the style block and table
+    * around them, so that several bodies can share one table. A body that
+    * was not formatted by a template goes into a single cell instead.
+    * @param body An HTML body formatted by {@link #format(CharSequence[])}.
+    * @return |out|
+    */
+   static StringBuilder appendHtmlRows(CharSequence body, StringBuilder out) {
+      String html = body.toString();
+      if (html.startsWith(HTML_OPEN) && html.endsWith(HTML_CLOSE))
+         return out.append(html, HTML_OPEN.length(), html.length() - HTML_CLOSE.length());
+      return out.append("<tr><td colspan=\"2\">").append(html).append(HTML_ROW_END);
+   }
+
+   /**
+    * @return Size of the buffer needed to format |values| without growing it.
+    */
+   public int estimateLength(CharSequence... values) {
+      int length = fixedLength;
+      for (CharSequence value : values) {
+         if (value != null)
+            length += value.length();
+      }
+      // leaves some room for escaped characters
+      return textEmail ? length : length + (length >> 4);
+   }
+}
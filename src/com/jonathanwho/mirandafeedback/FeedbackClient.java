@@ -0,0 +1,147 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+/**
+ * Submits feedback without a dialog, for example from a crash handler or an
+ * in-app survey. Obtained from {@link MirandaFeedback#newClient()}, it sends
+ * through the same account, outbox, transport and send threads as the
+ * dialog, so the connection is reused and the duplicate filter, rate limit
+ * and {@link SendPolicy} apply to both.
+ *
+ * Every submission carries a {@link FeedbackData} part, like the dialog's.
+ * A client is immutable and can be used from any thread. Digest mode and the
+ * send policy are read from the outbox on every submission, so a client
+ * follows later changes to them. Formatting and sending run on the send
+ * threads, so a submission costs the caller a copy of the values.
+ */
+public class FeedbackClient {
+   /**
+    * Receives the outcome of a submission on the main thread.
+    */
+   public interface Callback {
+      void onFinished(DeliveryResult result);
+   }
+
+   private static final String TAG = "FeedbackClient";
+
+   private final FeedbackOutbox outbox;
+   private final String appName;
+   private final String subject;
+   private final String recipientEmail;
+   private final boolean textEmail;
+   private final boolean attachLog;
+   private final List<String> fields;
+   /** Compiled once for the configured fields */
+   private final EmailTemplate template;
+
+   FeedbackClient(FeedbackOutbox outbox, String appName, String subject, String recipientEmail,
+      boolean textEmail, boolean attachLog, List<String> fields) {
+      this.outbox = outbox;
+      this.appName = appName;
+      this.subject = subject;
+      this.recipientEmail = recipientEmail;
+      this.textEmail = textEmail;
+      this.attachLog = attachLog;
+      this.fields = Collections.unmodifiableList(new ArrayList<String>(fields));
+      template = new EmailTemplate(this.fields, textEmail);
+   }
+
+   /**
+    * Submits feedback on the {@link SendExecutor.Priority#NORMAL} lane.
+    * @see #submit(Map, SendExecutor.Priority, Callback)
+    */
+   public Future<DeliveryResult> submit(Map<String, ? extends CharSequence> values) {
+      return submit(values, SendExecutor.Priority.NORMAL, null);
+   }
+
+   /**
+    * Submits feedback. The values of the fields added to the
+    * {@link MirandaFeedback} come first, in the order they were added, then
+    * any other label in the iteration order of |values|.
+    * @param values The value of each field by label. The feedback itself,
+    *    labeled {@link EmailTemplate#FEEDBACK_LABEL}, is required.
+    * @param priority The lane of the send, {@link SendExecutor.Priority#HIGH}
+    *    for crash reports.
+    * @param callback Receives the outcome on the main thread, or null.
+    * @return The outcome once the feedback is sent, queued or dropped.
+    * @throws IllegalArgumentException If there is no feedback.
+    * @throws RejectedExecutionException If too many sends are in flight.
+    */
+   public Future<DeliveryResult> submit(Map<String, ? extends CharSequence> values,
+      SendExecutor.Priority priority, final Callback callback) {
+      CharSequence feedback = values.get(EmailTemplate.FEEDBACK_LABEL);
+      if (feedback == null || feedback.length() == 0)
+         throw new IllegalArgumentException("No " + EmailTemplate.FEEDBACK_LABEL);
+
+      List<String> labels = fields;
+      List<String> extraLabels = null;
+      for (String label : values.keySet()) {
+         if (!label.equals(EmailTemplate.FEEDBACK_LABEL) && !fields.contains(label)) {
+            if (extraLabels == null)
+               extraLabels = new ArrayList<String>(fields);
+            extraLabels.add(label);
+         }
+      }
+      if (extraLabels != null)
+         labels = extraLabels;
+      // copied, the caller may change a mutable CharSequence once this returns
+      final String[] copy = new String[labels.size() + 1];
+      copy[0] = feedback.toString();
+      for (int i = 0; i < labels.size(); i++) {
+         CharSequence value = values.get(labels.get(i));
+         copy[i + 1] = value == null ? "" : value.toString();
+      }
+      final List<String> rowLabels = labels;
+
+      return SendExecutor.getInstance().submit(priority, new SendTask<DeliveryResult>() {
+         @Override
+         protected DeliveryResult doInBackground() {
+            EmailTemplate rowTemplate =
+               rowLabels == fields ? template : new EmailTemplate(rowLabels, textEmail);
+            int length = rowTemplate.estimateLength(copy);
+            StringBuilder data = FeedbackData.open(appName, System.currentTimeMillis(), length);
+            String body = rowTemplate.formatTo(new StringBuilder(length), data, copy).toString();
+            boolean sendNow =
+               !outbox.isDigestMode() && outbox.getSendPolicy().isImmediate() && outbox.isConnected();
+            return new FeedbackSubmission(outbox, subject, recipientEmail, textEmail, body,
+               FeedbackData.close(data), sendNow, attachLog, null,
+               DuplicateFilter.hash(rowLabels, copy)).send();
+         }
+
+         @Override
+         protected void onPostExecute(DeliveryResult result) {
+            if (callback != null)
+               callback.onFinished(result);
+         }
+
+         @Override
+         protected void onError(Exception error) {
+            Log.w(TAG, "Could not submit feedback", error);
+            if (callback != null)
+               callback.onFinished(DeliveryResult.FAILED);
+         }
+
+         @Override
+         protected void onCancelled() {
+            if (callback != null)
+               callback.onFinished(DeliveryResult.FAILED);
+         }
+      });
+   }
+
+   /**
+    * @return Labels of the fields added to the {@link MirandaFeedback}, in
+    *    the order their values appear in the email.
+    */
+   public List<String> getFields() {
+      return fields;
+   }
+}
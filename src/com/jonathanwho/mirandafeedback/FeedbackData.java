@@ -0,0 +1,174 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+
+import com.jonathanwho.mail.Attachment;
+
+/**
+ * The fields of a feedback response in a form meant for programs, sent as a
+ * MIME part next to the human readable body so that the fields can be
+ * recovered without scraping the HTML.
+ *
+ * The part is a small JSON document in US-ASCII, with one field per line so
+ * that it normally goes over the wire as 7bit:
+ *
+ * <pre>
+ * {"v":1,"app":"Demo","time":1700000000000,"fields":[
+ * ["Feedback","Great app"]
+ * ,["Email","user@example.com"]
+ * ]}
+ * </pre>
+ *
+ * It is written by {@link EmailTemplate} in the same pass as the body and
+ * read back by the FeedbackDataReader in benchmark/. Everything here runs on
+ * a plain JVM.
+ */
+public final class FeedbackData {
+   /** Version of the document written by this library */
+   public static final int SCHEMA_VERSION = 1;
+   /** Content type of the MIME part */
+   public static final String MIME_TYPE = "application/vnd.mirandafeedback+json";
+   /** File name of the MIME part */
+   public static final String ATTACHMENT_NAME = "feedback.json";
+
+   static final String ROW_SEPARATOR = "\n,";
+   private static final String CLOSE = "\n]}\n";
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+   private final int version;
+   private final String appName;
+   private final long timestamp;
+   private final List<String> labels;
+   private final List<String> values;
+
+   /**
+    * Construct a new FeedbackData.
+    * @param labels The label of every field, the feedback first.
+    * @param values The value of every field, in the order of |labels|.
+    */
+   public FeedbackData(int version, String appName, long timestamp, List<String> labels,
+      List<String> values) {
+      this.version = version;
+      this.appName = appName;
+      this.timestamp = timestamp;
+      this.labels = Collections.unmodifiableList(labels);
+      this.values = Collections.unmodifiableList(values);
+   }
+
+   /**
+    * @return Version of the document, {@link #SCHEMA_VERSION} or older.
+    */
+   public int getVersion() {
+      return version;
+   }
+
+   /**
+    * @return Name of the app the feedback is about, or null if it was not set.
+    */
+   public String getAppName() {
+      return appName;
+   }
+
+   /**
+    * @return When the feedback was submitted, in milliseconds since the epoch.
+    */
+   public long getTimestamp() {
+      return timestamp;
+   }
+
+   /**
+    * @return The label of every field, {@link EmailTemplate#FEEDBACK_LABEL} first.
+    */
+   public List<String> getLabels() {
+      return labels;
+   }
+
+   /**
+    * @return The value of every field, in the order of {@link #getLabels()}.
+    */
+   public List<String> getValues() {
+      return values;
+   }
+
+   /**
+    * @return The value of the field labeled |label|, or null if there is none.
+    */
+   public String getValue(String label) {
+      int index = labels.indexOf(label);
+      return index < 0 ? null : values.get(index);
+   }
+
+   /**
+    * Starts a document, to be filled by
+    * {@link EmailTemplate#formatTo(StringBuilder, StringBuilder, CharSequence...)}.
+    * @param appName Name of the app, or null.
+    * @param timestamp When the feedback was submitted.
+    * @param capacity Expected length of the field values.
+    * @return The buffer to format into.
+    */
+   public static StringBuilder open(String appName, long timestamp, int capacity) {
+      StringBuilder data = new StringBuilder(capacity + 64);
+      data.append("{\"v\":").append(SCHEMA_VERSION).append(",\"app\":");
+      if (appName == null)
+         data.append("null");
+      else
+         escape(appName, data);
+      return data.append(",\"time\":").append(timestamp).append(",\"fields\":[\n");
+   }
+
+   /**
+    * Ends the document and wraps it as the MIME part.
+    * @param data The buffer returned by {@link #open(String, long, int)}.
+    */
+   public static Attachment close(StringBuilder data) {
+      data.append(CLOSE);
+      byte[] bytes;
+      try {
+         bytes = data.toString().getBytes("US-ASCII");
+      } catch (UnsupportedEncodingException e) {
+         throw new AssertionError(e);
+      }
+      return new Attachment(ATTACHMENT_NAME, MIME_TYPE, bytes);
+   }
+
+   /**
+    * Appends |text| to |out| as a quoted JSON string, with every character
+    * outside printable US-ASCII escaped.
+    * @return |out|
+    */
+   static StringBuilder escape(CharSequence text, StringBuilder out) {
+      out.append('"');
+      int length = text.length();
+      int start = 0;
+      for (int i = 0; i < length; i++) {
+         char c = text.charAt(i);
+         if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\')
+            continue;
+         out.append(text, start, i);
+         start = i + 1;
+         switch (c) {
+         case '"':
+            out.append("\\\"");
+            break;
+         case '\\':
+            out.append("\\\\");
+            break;
+         case '\n':
+            out.append("\\n");
+            break;
+         case '\r':
+            out.append("\\r");
+            break;
+         case '\t':
+            out.append("\\t");
+            break;
+         default:
+            out.append("\\u").append(HEX[c >> 12]).append(HEX[c >> 8 & 0xf])
+               .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+         }
+      }
+      return out.append(text, start, length).append('"');
+   }
+}
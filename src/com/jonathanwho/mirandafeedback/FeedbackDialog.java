@@ -1,65 +1,96 @@
 package com.jonathanwho.mirandafeedback;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.AsyncTask;
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
-import android.text.Html;
-import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
-import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.TextView;
 import android.widget.Toast;
 
-import com.jonathanwho.mail.GmailSender;
+import com.jonathanwho.mail.Attachment;
+
 
 /**
  * The actual DialogFragment that appears on the UI.
  * @author jmiranda
  *
  */
-public class FeedbackDialog extends DialogFragment implements OnClickListener {
-   /** Holds the ViewGroups of the custom fields */
-   private List<ViewGroup> viewFields;
-   /** Holds the text from the feedback form */
-   private EditText feedback;
+public class FeedbackDialog extends DialogFragment implements OnClickListener,
+   FeedbackSubmission.Listener {
+   /** The views of the feedback form, reused across shows */
+   private FeedbackForm form;
    /** Holds the format of the email. True: text/plain False: text/html*/
    private boolean textEmail;
+   /** True if feedback is always queued to be merged into a digest */
+   private boolean digestMode;
+   /** True if the {@link FeedbackLog} is attached to the feedback */
+   private boolean attachLog;
+   /** The screen the dialog was opened from, if it is attached */
+   private Screenshot screenshot;
+   /** The feedback being sent, kept across the recreation of the dialog */
+   private FeedbackSubmission submission;
+   /** Shown while |submission| is running and the dialog is started */
+   private ProgressDialog progressDialog;
+   /** Name of the app, recorded in the {@link FeedbackData} part */
+   private String appName;
+   /** Layouts of the email, compiled for the configured fields */
+   private EmailTemplate htmlTemplate;
+   private EmailTemplate textTemplate;
 
-   private static final int FIELD_TEXT = 0; // TextView is the 0th child
-   private static final int FIELD_INPUT = 1; // EditText is the 1st child
-
-   private static final String NETWORK_ERROR = "No network found.";
+   private static final String QUEUED_MSG =
+      "Thank you for your feedback! It will be sent once a network is available.";
+   private static final String DEFERRED_MSG =
+      "Thank you for your feedback! It will be sent later.";
    private static final String REQUIRED_FIELD_ERROR = "This field is required.";
    private static final String UNKNOWN_ERROR = "An unknown error occurred.";
+   private static final String BUSY_ERROR = "Too much feedback is being sent, please try again.";
    private static final String SUCCESSFUL_MSG = "Thank you for your feedback!";
+   private static final String DUPLICATE_MSG = "This feedback was already sent.";
    private final String PROGRESS_MSG = "Sending feedback...";
 
+   /** Saves the id of the running submission */
+   private static final String SUBMISSION_ID = "SUBMISSION_ID";
+
    private static final String DIALOG_TITLE = "Send Feedback";
    private static final String DIALOG_TITLE_WITH_APP_NAME = "Send Feedback for ";
 
    /** Gmail account information */
-   private static String gmailFromEmail;
-   private static String gmailPassword;
-   private static String gmailSubject;
-   private static String gmailRecipientEmail;
+   private String gmailFromEmail;
+   private String gmailSubject;
+   private String gmailRecipientEmail;
 
    /**
     * Construct a new FeedbackDialog.
     */
    public FeedbackDialog() {
-      viewFields = new ArrayList<ViewGroup>();
+   }
+
+   /**
+    * Hands over a form inflated ahead of time. Without one, or if its fields
+    * do not match, the form is inflated when the dialog is created.
+    * @param form The form to show.
+    */
+   void setForm(FeedbackForm form) {
+      this.form = form;
+   }
+
+   /**
+    * Hands over the screenshot to attach to the feedback, releasing the one
+    * of the previous show.
+    * @param screenshot The screenshot, or null to attach none.
+    */
+   void setScreenshot(Screenshot screenshot) {
+      if (this.screenshot != null && this.screenshot != screenshot)
+         this.screenshot.release();
+      this.screenshot = screenshot;
    }
 
    /**
@@ -67,18 +98,23 @@ public class FeedbackDialog extends DialogFragment implements OnClickListener {
     */
    @Override
    public Dialog onCreateDialog(Bundle savedInstanceState) {
+      if (savedInstanceState != null)
+         submission = FeedbackSubmission.get(savedInstanceState.getLong(SUBMISSION_ID, -1));
       Bundle arguments = getArguments();
-      String appName = arguments.getString(MirandaFeedback.APP_NAME);
+      appName = arguments.getString(MirandaFeedback.APP_NAME);
       String positiveButtonText = arguments.getString(MirandaFeedback.POS_BUTTON);
       String negativeButtonText = arguments.getString(MirandaFeedback.NEG_BUTTON);
       String dialogTitle = arguments.getString(MirandaFeedback.DIALOG_TITLE);
       textEmail = arguments.getBoolean(MirandaFeedback.TEXT_EMAIL);
+      digestMode = arguments.getBoolean(MirandaFeedback.DIGEST_MODE);
+      attachLog = arguments.getBoolean(MirandaFeedback.ATTACH_LOG);
       gmailFromEmail = arguments.getString(MirandaFeedback.GMAIL_FROM);
       gmailRecipientEmail = arguments.getString(MirandaFeedback.GMAIL_RECIPIENT);
-      gmailPassword = arguments.getString(MirandaFeedback.GMAIL_PW);
       gmailSubject = arguments.getString(MirandaFeedback.GMAIL_SUBJECT);
 
       ArrayList<String> fields = arguments.getStringArrayList(MirandaFeedback.ADDED_FIELDS);
+      htmlTemplate = new EmailTemplate(fields, false);
+      textTemplate = new EmailTemplate(fields, true);
 
       // Gets the title for the dialog
       String title =
@@ -91,23 +127,17 @@ public class FeedbackDialog extends DialogFragment implements OnClickListener {
       builder.setPositiveButton(positiveButtonText, null);
       builder.setNegativeButton(negativeButtonText, null);
 
-      LayoutInflater inflater = getActivity().getLayoutInflater();
-      ViewGroup root = (ViewGroup) inflater.inflate(R.layout.feedback_layout, null);
-      feedback = (EditText) root.findViewById(R.id.feedback);
-
-      // Adds new fields to the feedback form
-      for (String field : fields) {
-         ViewGroup layout = (ViewGroup) inflater.inflate(R.layout.edit_text_template, null);
-         TextView textView = (TextView) layout.findViewById(R.id.text_view);
-         textView.setText(field);
-         root.addView(layout);
-         viewFields.add(layout);
-      }
-
-      builder.setView(root);
+      // reuses the form of the previous show if the fields did not change
+      if (form == null || !form.hasFields(fields))
+         form = new FeedbackForm(getActivity().getLayoutInflater(), fields);
+      builder.setView(form.attach());
       return builder.create();
    }
 
+   /**
+    * Takes the outcome of a submission started before the dialog was
+    * stopped, by this instance or the one it replaces.
+    */
    @Override
    public void onStart() {
       super.onStart();
@@ -116,6 +146,39 @@ public class FeedbackDialog extends DialogFragment implements OnClickListener {
          Button positiveButton = (Button) dialog.getButton(Dialog.BUTTON_POSITIVE);
          positiveButton.setOnClickListener(this); // FeedbackDialog#onClick
       }
+      if (submission != null) {
+         showProgress();
+         submission.attach(this);
+      }
+   }
+
+   /**
+    * Lets go of the submission, which keeps its outcome until the dialog is
+    * started again, so that a send finishing in between does not touch a
+    * stopped Activity.
+    */
+   @Override
+   public void onStop() {
+      if (submission != null)
+         submission.detach(this);
+      hideProgress();
+      super.onStop();
+   }
+
+   @Override
+   public void onSaveInstanceState(Bundle outState) {
+      super.onSaveInstanceState(outState);
+      if (submission != null)
+         outState.putLong(SUBMISSION_ID, submission.getId());
+   }
+
+   /**
+    * Gives the screenshot's bitmap back once the dialog is closed.
+    */
+   @Override
+   public void onDismiss(DialogInterface dialog) {
+      super.onDismiss(dialog);
+      setScreenshot(null);
    }
 
    /**
@@ -130,25 +193,7 @@ public class FeedbackDialog extends DialogFragment implements OnClickListener {
     * @return Feedback input as HTML.
     */
    public String formattedHtmlEmail() {
-      StringBuilder body = new StringBuilder();
-      String fieldLabel;
-      String userInput;
-      String tableRowFormat =
-         "<tr><td style='width: 25%%; background: #efefef;'><b>%s</b></td><td>%s</td></tr>";
-
-      // Builds body of the email
-      body.append("<table style='width: 600px; border: 1px solid black;'>");
-      body.append(String.format(tableRowFormat, "Feedback", feedback.getText().toString()));
-      for (ViewGroup layout : viewFields) {
-         fieldLabel = ((TextView) layout.getChildAt(FIELD_TEXT)).getText().toString();
-         userInput = ((EditText) layout.getChildAt(FIELD_INPUT)).getText().toString();
-         // Strip input
-         fieldLabel = Html.fromHtml(fieldLabel).toString();
-         userInput = Html.fromHtml(userInput).toString();
-         body.append(String.format(tableRowFormat, fieldLabel, userInput));
-      }
-      body.append("</table>");
-      return body.toString();
+      return formattedEmail(htmlTemplate);
    }
 
    /**
@@ -162,70 +207,121 @@ public class FeedbackDialog extends DialogFragment implements OnClickListener {
     * @return Feedback input as plain text.
     */
    public String formattedPlainTextEmail() {
-      StringBuilder body = new StringBuilder();
-      String fieldLabel;
-      String userInput;
-
-      // Builds body of the email
-      body.append("Feedback:" + "\n\t" + feedback.getText().toString() + "\n");
-      for (ViewGroup layout : viewFields) {
-         fieldLabel = ((TextView) layout.getChildAt(FIELD_TEXT)).getText().toString();
-         userInput = ((EditText) layout.getChildAt(FIELD_INPUT)).getText().toString();
-         // Strip input
-         fieldLabel = Html.fromHtml(fieldLabel).toString();
-         userInput = Html.fromHtml(userInput).toString();
-         body.append(fieldLabel + ":\n\t" + userInput + "\n");
-      }
-      return body.toString();
+      return formattedEmail(textTemplate);
+   }
+
+   /**
+    * Formats the form input with |emailTemplate|.
+    */
+   private String formattedEmail(EmailTemplate emailTemplate) {
+      return emailTemplate.format(form.getValues());
    }
 
    /**
-    * Sends the feedback form input using the Gmail credentials.
+    * Sends the feedback form input through the configured
+    * {@link FeedbackTransport}, by default the Gmail account. If there is
+    * no network or the send fails temporarily, the feedback is written to the
+    * {@link FeedbackOutbox} and sent once a network is available. In digest
+    * mode the feedback always goes to the outbox. Failures that retrying
+    * cannot fix, such as bad credentials, are reported right away. If the
+    * {@link SendPolicy} defers feedback, it goes to the outbox as well. If
+    * configured, a snapshot of the {@link FeedbackLog} and the screenshot,
+    * encoded here off the main thread, are attached. Feedback identical to
+    * feedback sent recently, such as after a double tap, is dropped. Feedback
+    * over the account's rate limit is deferred to the outbox. The send is
+    * owned by a {@link FeedbackSubmission}, so it outlives a rotation or the
+    * Activity.
     *  
     * @param email The body of the email message.
     */
    public void sendEmail(String email) {
-      // sends feedback to |gmailRecipient|
-      new AsyncTask<String, Void, Boolean>() {
-         ProgressDialog progressDialog;
-
-         @Override
-         protected void onPreExecute() {
-            super.onPreExecute();
-            progressDialog = new ProgressDialog(getActivity());
-            progressDialog.setMessage(PROGRESS_MSG);
-            progressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-            progressDialog.setProgress(0);
-            progressDialog.show();
-         }
-
-         @Override
-         protected Boolean doInBackground(String... subject) {
-            GmailSender sender = new GmailSender(gmailFromEmail, gmailPassword, textEmail);
-            try {
-               sender.sendMail(gmailSubject, subject[0], gmailFromEmail, gmailRecipientEmail);
-               return true;
-            } catch (Exception e) {
-               e.printStackTrace();
-            }
-            return false;
-         }
-
-         @Override
-         protected void onPostExecute(Boolean sent) {
-            progressDialog.dismiss();
-            if (sent) {
-               Toast.makeText(getActivity(), SUCCESSFUL_MSG, Toast.LENGTH_LONG).show();
-               getDialog().dismiss();
-            } else {
-               Toast.makeText(getActivity(), UNKNOWN_ERROR, Toast.LENGTH_LONG).show();
-            }
-         }
-      }.execute(email);
+      sendEmail(email, null);
+   }
+
+   /**
+    * Formats the form input and its {@link FeedbackData} part in one pass
+    * and sends them.
+    */
+   private void sendForm() {
+      EmailTemplate template = textEmail ? textTemplate : htmlTemplate;
+      CharSequence[] values = form.getValues();
+      int length = template.estimateLength(values);
+      StringBuilder data = FeedbackData.open(appName, System.currentTimeMillis(), length);
+      String email = template.formatTo(new StringBuilder(length), data, values).toString();
+      sendEmail(email, FeedbackData.close(data));
+   }
+
+   /**
+    * @see #sendEmail(String)
+    * @param data The {@link FeedbackData} part, or null.
+    */
+   private void sendEmail(String email, Attachment data) {
+      // the outbox holds the credentials, the arguments only name the account
+      FeedbackOutbox outbox = FeedbackOutbox.find(gmailFromEmail);
+      if (outbox == null) {
+         // the process was restarted and the app did not set up the account again yet
+         Toast.makeText(getActivity(), UNKNOWN_ERROR, Toast.LENGTH_LONG).show();
+         return;
+      }
+      boolean sendNow = !digestMode && outbox.getSendPolicy().isImmediate() && outbox.isConnected();
+      try {
+         submission =
+            FeedbackSubmission.start(outbox, gmailSubject, gmailRecipientEmail, textEmail, email,
+               data, sendNow, attachLog, screenshot, form.hash());
+      } catch (RejectedExecutionException e) {
+         // too many sends in flight
+         Toast.makeText(getActivity(), BUSY_ERROR, Toast.LENGTH_LONG).show();
+         return;
+      }
+      // the submission encodes and releases it
+      screenshot = null;
+      submission.attach(this);
+      showProgress();
+   }
+
+   /**
+    * Reports the outcome of the submission. Only called while the dialog is
+    * started, so its Activity is alive.
+    */
+   public void onSubmissionFinished(DeliveryResult result) {
+      submission = null;
+      hideProgress();
+      if (result == DeliveryResult.SENT) {
+         Toast.makeText(getActivity(), SUCCESSFUL_MSG, Toast.LENGTH_LONG).show();
+         form.clear();
+         dismissAllowingStateLoss();
+      } else if (result == DeliveryResult.DUPLICATE) {
+         Toast.makeText(getActivity(), DUPLICATE_MSG, Toast.LENGTH_LONG).show();
+         dismissAllowingStateLoss();
+      } else if (result == DeliveryResult.QUEUED || result == DeliveryResult.DEFERRED) {
+         Toast.makeText(getActivity(), result == DeliveryResult.QUEUED ? QUEUED_MSG
+            : DEFERRED_MSG, Toast.LENGTH_LONG).show();
+         form.clear();
+         dismissAllowingStateLoss();
+      } else {
+         Toast.makeText(getActivity(), UNKNOWN_ERROR, Toast.LENGTH_LONG).show();
+      }
+   }
+
+   private void showProgress() {
+      if (progressDialog != null)
+         return;
+      progressDialog = new ProgressDialog(getActivity());
+      progressDialog.setMessage(PROGRESS_MSG);
+      progressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+      progressDialog.setProgress(0);
+      progressDialog.show();
+   }
+
+   private void hideProgress() {
+      if (progressDialog != null) {
+         progressDialog.dismiss();
+         progressDialog = null;
+      }
    }
 
    /**
-    * Verifies network connection and feedback input fields.
+    * Verifies the feedback input fields.
     * If everything is valid, it attemps to send the email
     * Else displays a relevant error.
     * 
@@ -234,17 +330,14 @@ public class FeedbackDialog extends DialogFragment implements OnClickListener {
     */
    @Override
    public void onClick(View view) {
-      NetworkInfo networkInfo =
-         (NetworkInfo) ((ConnectivityManager) getActivity().getSystemService(
-            Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
-      if (networkInfo == null || !networkInfo.isConnected()) {
-         // no internet connection
-         Toast.makeText(getActivity(), NETWORK_ERROR, Toast.LENGTH_LONG).show();
-      } else if (feedback.getText().toString().isEmpty()) {
+      if (submission != null)
+         return; // already sending, e.g. a double tap
+      EditText feedback = form.getFeedback();
+      if (feedback.getText().toString().isEmpty()) {
          // required field is left blank
          feedback.setError(REQUIRED_FIELD_ERROR);
       } else {
-         sendEmail(textEmail ? formattedPlainTextEmail() : formattedHtmlEmail());
+         sendForm();
       }
    }
 }
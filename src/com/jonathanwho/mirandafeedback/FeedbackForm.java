@@ -0,0 +1,95 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.EditText;
+import android.widget.TextView;
+
+/**
+ * The views of the feedback form for one set of fields. Inflated once, by
+ * {@link MirandaFeedback} while the main thread is idle or on the first
+ * show, and attached again every time the dialog is reopened. What the user
+ * typed is kept until the feedback is submitted.
+ */
+class FeedbackForm {
+   private final List<String> fields;
+   private final ViewGroup root;
+   /** The feedback input, then the input of every custom field */
+   private final EditText[] inputs;
+
+   /**
+    * Inflates the form.
+    * @param inflater Inflater of the activity that shows the dialog.
+    * @param fields Labels of the custom fields.
+    */
+   FeedbackForm(LayoutInflater inflater, List<String> fields) {
+      this.fields = new ArrayList<String>(fields);
+      root = (ViewGroup) inflater.inflate(R.layout.feedback_layout, null);
+      inputs = new EditText[fields.size() + 1];
+      inputs[0] = (EditText) root.findViewById(R.id.feedback);
+
+      // Adds new fields to the feedback form
+      for (int i = 0; i < fields.size(); i++) {
+         ViewGroup layout = (ViewGroup) inflater.inflate(R.layout.edit_text_template, null);
+         TextView textView = (TextView) layout.findViewById(R.id.text_view);
+         textView.setText(fields.get(i));
+         root.addView(layout);
+         inputs[i + 1] = (EditText) layout.findViewById(R.id.edit_text);
+      }
+   }
+
+   /**
+    * @return True if the form was built for |fields|.
+    */
+   boolean hasFields(List<String> fields) {
+      return this.fields.equals(fields);
+   }
+
+   /**
+    * Detaches the form from the dialog it was last shown in.
+    * @return The root view, ready to be set as a dialog's view.
+    */
+   ViewGroup attach() {
+      ViewParent parent = root.getParent();
+      if (parent instanceof ViewGroup)
+         ((ViewGroup) parent).removeView(root);
+      return root;
+   }
+
+   /**
+    * @return The required feedback input.
+    */
+   EditText getFeedback() {
+      return inputs[0];
+   }
+
+   /**
+    * @return The text of every input, the feedback first, read without
+    *    copying.
+    */
+   CharSequence[] getValues() {
+      CharSequence[] values = new CharSequence[inputs.length];
+      for (int i = 0; i < inputs.length; i++)
+         values[i] = inputs[i].getText();
+      return values;
+   }
+
+   /**
+    * @return A hash of what the user typed, see {@link DuplicateFilter}.
+    */
+   long hash() {
+      return DuplicateFilter.hash(fields, getValues());
+   }
+
+   /**
+    * Empties every input, once the feedback has been submitted.
+    */
+   void clear() {
+      for (EditText input : inputs)
+         input.setText("");
+   }
+}
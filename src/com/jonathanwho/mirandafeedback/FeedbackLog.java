@@ -0,0 +1,200 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+import com.jonathanwho.mail.Attachment;
+
+/**
+ * A fixed-size, in-memory log of the app's recent events that is attached to
+ * feedback, gzipped, when the dialog is configured with
+ * {@link MirandaFeedback#setAttachLog(boolean)}.
+ *
+ * Any thread can log without locking or allocating: a writer takes the next
+ * sequence number with one atomic increment, claims its slot with a
+ * compare-and-set and copies the message into preallocated atomic arrays,
+ * overwriting the oldest entry once the log is full. Messages longer than
+ * the maximum length are cut. A writer that laps a slot still being written,
+ * which takes a full log of entries during one write, drops its entry.
+ *
+ * Every access to an entry is volatile, so a snapshot that reads the same
+ * sequence number in a slot before and after copying the entry has copied
+ * it whole; entries overwritten while they are read are skipped.
+ */
+public final class FeedbackLog {
+   /** Default number of entries kept */
+   public static final int DEFAULT_CAPACITY = 512;
+   /** Default number of characters kept per message */
+   public static final int DEFAULT_MAX_MESSAGE_LENGTH = 200;
+   /** Name of the attachment */
+   public static final String ATTACHMENT_NAME = "log.txt.gz";
+
+   private static final String ATTACHMENT_TYPE = "application/gzip";
+   private static final int BUFFER_SIZE = 4096;
+   private static final int CHARS_PER_WORD = 4;
+
+   private static FeedbackLog instance;
+
+   private final int mask;
+   private final int maxMessageLength;
+   /** Sequence number of the next entry */
+   private final AtomicLong next = new AtomicLong();
+   /**
+    * Sequence number + 1 of the entry complete in each slot, or minus that
+    * while it is written, 0 if the slot was never used
+    */
+   private final AtomicLongArray published;
+   private final AtomicLongArray times;
+   private final AtomicIntegerArray levels;
+   private final AtomicReferenceArray<String> tags;
+   private final AtomicIntegerArray lengths;
+   /** The messages, CHARS_PER_WORD characters per element */
+   private final AtomicLongArray text;
+   /** Elements of |text| per slot */
+   private final int wordsPerSlot;
+
+   /**
+    * @return The log attached to feedback, created with the default size on
+    *    first use.
+    */
+   public static synchronized FeedbackLog getInstance() {
+      if (instance == null)
+         instance = new FeedbackLog(DEFAULT_CAPACITY, DEFAULT_MAX_MESSAGE_LENGTH);
+      return instance;
+   }
+
+   /**
+    * Construct a new FeedbackLog. Its memory is allocated up front: about
+    * |capacity| * (|maxMessageLength| * 2 + 40) bytes.
+    * @param capacity Number of entries kept, rounded up to a power of two.
+    * @param maxMessageLength Number of characters kept per message.
+    */
+   public FeedbackLog(int capacity, int maxMessageLength) {
+      int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+      mask = size - 1;
+      this.maxMessageLength = maxMessageLength;
+      wordsPerSlot = (maxMessageLength + CHARS_PER_WORD - 1) / CHARS_PER_WORD;
+      published = new AtomicLongArray(size);
+      times = new AtomicLongArray(size);
+      levels = new AtomicIntegerArray(size);
+      tags = new AtomicReferenceArray<String>(size);
+      lengths = new AtomicIntegerArray(size);
+      text = new AtomicLongArray(size * wordsPerSlot);
+   }
+
+   public void d(String tag, CharSequence message) {
+      log('D', tag, message);
+   }
+
+   public void i(String tag, CharSequence message) {
+      log('I', tag, message);
+   }
+
+   public void w(String tag, CharSequence message) {
+      log('W', tag, message);
+   }
+
+   public void e(String tag, CharSequence message) {
+      log('E', tag, message);
+   }
+
+   /**
+    * Appends an entry, overwriting the oldest one if the log is full.
+    * @param level One letter, as in logcat: D, I, W or E.
+    * @param tag Where the message comes from, kept by reference.
+    * @param message The message, copied up to the maximum length.
+    */
+   public void log(char level, String tag, CharSequence message) {
+      long sequence = next.getAndIncrement();
+      int slot = (int) sequence & mask;
+      // an older entry is complete in the slot, or it was never used
+      long current = published.get(slot);
+      if (current < 0 || current > sequence
+         || !published.compareAndSet(slot, current, -(sequence + 1)))
+         return; // lapped, the slot belongs to another writer
+
+      times.set(slot, System.currentTimeMillis());
+      levels.set(slot, level);
+      tags.set(slot, tag);
+      int length = message == null ? 0 : Math.min(message.length(), maxMessageLength);
+      int offset = slot * wordsPerSlot;
+      for (int i = 0; i < length; i += CHARS_PER_WORD) {
+         long word = 0;
+         for (int j = Math.min(length, i + CHARS_PER_WORD) - 1; j >= i; j--)
+            word = word << 16 | message.charAt(j);
+         text.set(offset + i / CHARS_PER_WORD, word);
+      }
+      lengths.set(slot, length);
+
+      published.set(slot, sequence + 1);
+   }
+
+   /**
+    * Writes the entries, oldest first, one per line in the form
+    * "10-18 14:03:27.512 W/Tag: message".
+    * @param out Receives the entries.
+    */
+   public void dump(Writer out) throws IOException {
+      SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+      Date date = new Date();
+      char[] message = new char[maxMessageLength];
+      long end = next.get();
+      for (long sequence = Math.max(0, end - (mask + 1)); sequence < end; sequence++) {
+         int slot = (int) sequence & mask;
+         if (published.get(slot) != sequence + 1)
+            continue; // still being written or already overwritten
+
+         long time = times.get(slot);
+         char level = (char) levels.get(slot);
+         String tag = tags.get(slot);
+         int length = lengths.get(slot);
+         int offset = slot * wordsPerSlot;
+         for (int i = 0; i < length; i += CHARS_PER_WORD) {
+            long word = text.get(offset + i / CHARS_PER_WORD);
+            for (int j = i; j < length && j < i + CHARS_PER_WORD; j++, word >>>= 16)
+               message[j] = (char) word;
+         }
+         if (published.get(slot) != sequence + 1)
+            continue; // overwritten while it was copied
+
+         date.setTime(time);
+         out.write(dateFormat.format(date));
+         out.write(' ');
+         out.write(level);
+         out.write('/');
+         out.write(String.valueOf(tag));
+         out.write(": ");
+         out.write(message, 0, length);
+         out.write('\n');
+      }
+   }
+
+   /**
+    * @return The entries as gzipped UTF-8 text, ready to be attached.
+    */
+   public Attachment snapshot() {
+      AttachmentOutputStream bytes = new AttachmentOutputStream(BUFFER_SIZE);
+      try {
+         Writer out =
+            new OutputStreamWriter(new GZIPOutputStream(bytes, BUFFER_SIZE), "UTF-8");
+         try {
+            dump(out);
+         } finally {
+            out.close();
+         }
+      } catch (IOException e) {
+         // cannot happen in memory
+         throw new IllegalStateException(e);
+      }
+      return bytes.toAttachment(ATTACHMENT_NAME, ATTACHMENT_TYPE);
+   }
+}
@@ -0,0 +1,81 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.jonathanwho.mail.Attachment;
+
+/**
+ * A formatted feedback response, ready to be handed to a
+ * {@link FeedbackTransport}.
+ */
+public class FeedbackMessage {
+   private final String subject;
+   private final String recipientEmail;
+   private final boolean textEmail;
+   private final CharSequence body;
+   private final long timestamp;
+   private final List<Attachment> attachments;
+
+   /**
+    * Construct a new FeedbackMessage.
+    * @param subject Subject of the email.
+    * @param recipientEmail Recipient of the feedback response.
+    * @param textEmail True if the body is plain text, false if it is HTML.
+    * @param body The formatted response.
+    * @param timestamp When the feedback was submitted, in milliseconds since
+    *    the epoch.
+    */
+   public FeedbackMessage(String subject, String recipientEmail, boolean textEmail,
+      CharSequence body, long timestamp) {
+      this(subject, recipientEmail, textEmail, body, timestamp, Collections
+         .<Attachment> emptyList());
+   }
+
+   /**
+    * Construct a new FeedbackMessage with attachments.
+    * @param attachments Files sent along with the response, such as logs.
+    */
+   public FeedbackMessage(String subject, String recipientEmail, boolean textEmail,
+      CharSequence body, long timestamp, List<Attachment> attachments) {
+      this.attachments = attachments;
+      this.subject = subject;
+      this.recipientEmail = recipientEmail;
+      this.textEmail = textEmail;
+      this.body = body;
+      this.timestamp = timestamp;
+   }
+
+   public String getSubject() {
+      return subject;
+   }
+
+   public String getRecipientEmail() {
+      return recipientEmail;
+   }
+
+   public boolean isTextEmail() {
+      return textEmail;
+   }
+
+   public CharSequence getBody() {
+      return body;
+   }
+
+   public long getTimestamp() {
+      return timestamp;
+   }
+
+   public List<Attachment> getAttachments() {
+      return attachments;
+   }
+
+   /**
+    * @return True if |other| can be delivered in the same digest as this
+    *    message.
+    */
+   public boolean canMergeWith(FeedbackMessage other) {
+      return other != null && textEmail == other.textEmail && subject.equals(other.subject)
+         && recipientEmail.equals(other.recipientEmail);
+   }
+}
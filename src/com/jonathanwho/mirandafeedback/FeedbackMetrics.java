@@ -0,0 +1,322 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.jonathanwho.mail.MailSendException;
+import com.jonathanwho.mail.SendTimings;
+
+/**
+ * Timings, counters and queue depths of every send made by the library.
+ *
+ * Numbers accumulate from process start, or the last {@link #reset()}. Read
+ * them with {@link #snapshot()}, or register a {@link FeedbackMetricsListener}
+ * to receive each measurement as it is recorded. Recording only updates
+ * preallocated counters and does not allocate.
+ */
+public class FeedbackMetrics {
+
+   /**
+    * Timed phases of a send.
+    */
+   public enum Phase {
+      /** Waiting in the {@link SendExecutor} queue for a send thread */
+      QUEUE_WAIT,
+      /** TCP connect, server greeting and EHLO */
+      CONNECT,
+      /** TLS handshake */
+      TLS,
+      /** Authentication */
+      AUTH,
+      /** Transmitting the messages */
+      DATA,
+      /** Time a send was put off to stay under the account's rate limit */
+      DEFERRED,
+      /** The whole send, from the call into the transport until it returns */
+      TOTAL
+   }
+
+   private static final int PHASES = Phase.values().length;
+   private static final int REASONS = MailSendException.Reason.values().length;
+   private static final FeedbackMetricsListener[] NO_LISTENERS = new FeedbackMetricsListener[0];
+
+   private static FeedbackMetrics instance;
+
+   private final AtomicLongArray phaseCounts = new AtomicLongArray(PHASES);
+   private final AtomicLongArray phaseTotals = new AtomicLongArray(PHASES);
+   private final AtomicLongArray phaseMaxima = new AtomicLongArray(PHASES);
+   private final AtomicLong attempts = new AtomicLong();
+   private final AtomicLong successes = new AtomicLong();
+   private final AtomicLongArray failures = new AtomicLongArray(REASONS);
+   private final AtomicLong messagesSent = new AtomicLong();
+   private final AtomicLong duplicatesDropped = new AtomicLong();
+   private final AtomicInteger waitingTasks = new AtomicInteger();
+   private final AtomicInteger queuedFeedback = new AtomicInteger();
+
+   /** Copied on write, so notifying needs neither a lock nor an iterator */
+   private volatile FeedbackMetricsListener[] listeners = NO_LISTENERS;
+
+   /**
+    * @return The metrics of the whole library.
+    */
+   public static synchronized FeedbackMetrics getInstance() {
+      if (instance == null)
+         instance = new FeedbackMetrics();
+      return instance;
+   }
+
+   private FeedbackMetrics() {
+   }
+
+   /**
+    * Registers a listener.
+    * @param listener Receives every measurement from now on.
+    */
+   public synchronized void addListener(FeedbackMetricsListener listener) {
+      FeedbackMetricsListener[] grown = new FeedbackMetricsListener[listeners.length + 1];
+      System.arraycopy(listeners, 0, grown, 0, listeners.length);
+      grown[listeners.length] = listener;
+      listeners = grown;
+   }
+
+   /**
+    * Unregisters a listener.
+    * @param listener A listener passed to {@link #addListener(FeedbackMetricsListener)}.
+    */
+   public synchronized void removeListener(FeedbackMetricsListener listener) {
+      for (int i = 0; i < listeners.length; i++) {
+         if (listeners[i] == listener) {
+            FeedbackMetricsListener[] shrunk = new FeedbackMetricsListener[listeners.length - 1];
+            System.arraycopy(listeners, 0, shrunk, 0, i);
+            System.arraycopy(listeners, i + 1, shrunk, i, shrunk.length - i);
+            listeners = shrunk;
+            return;
+         }
+      }
+   }
+
+   /**
+    * @return A copy of the current numbers.
+    */
+   public Snapshot snapshot() {
+      return new Snapshot(this);
+   }
+
+   /**
+    * Clears every timing and counter. Queue depths are kept, they describe
+    * the present.
+    */
+   public void reset() {
+      for (int i = 0; i < PHASES; i++) {
+         phaseCounts.set(i, 0);
+         phaseTotals.set(i, 0);
+         phaseMaxima.set(i, 0);
+      }
+      for (int i = 0; i < REASONS; i++)
+         failures.set(i, 0);
+      attempts.set(0);
+      successes.set(0);
+      messagesSent.set(0);
+      duplicatesDropped.set(0);
+   }
+
+   /**
+    * Marks the start of a send attempt on the calling thread.
+    * @return The start time to pass to {@link #finishSend(long, int, MailSendException.Reason)}.
+    */
+   long startSend() {
+      SendTimings.forCurrentThread().reset();
+      return System.nanoTime();
+   }
+
+   /**
+    * Records a send attempt made on the calling thread, with the phases the
+    * mail stack timed since {@link #startSend()}.
+    * @param start The value returned by {@link #startSend()}.
+    * @param messages Number of messages delivered.
+    * @param failure Why the attempt failed, or null if it succeeded.
+    */
+   void finishSend(long start, int messages, MailSendException.Reason failure) {
+      long total = System.nanoTime() - start;
+      SendTimings timings = SendTimings.forCurrentThread();
+      recordPhase(Phase.CONNECT, timings.getConnectNanos());
+      recordPhase(Phase.TLS, timings.getTlsNanos());
+      recordPhase(Phase.AUTH, timings.getAuthNanos());
+      recordPhase(Phase.DATA, timings.getDataNanos());
+      recordPhase(Phase.TOTAL, total);
+
+      attempts.incrementAndGet();
+      messagesSent.addAndGet(messages);
+      if (failure == null)
+         successes.incrementAndGet();
+      else
+         failures.incrementAndGet(failure.ordinal());
+
+      FeedbackMetricsListener[] current = listeners;
+      for (int i = 0; i < current.length; i++)
+         current[i].onSendFinished(messages, failure);
+   }
+
+   /**
+    * Records the duration of a phase. Zero durations are phases that did not
+    * happen and are skipped.
+    */
+   void recordPhase(Phase phase, long durationNanos) {
+      if (durationNanos <= 0)
+         return;
+      int index = phase.ordinal();
+      phaseCounts.incrementAndGet(index);
+      phaseTotals.addAndGet(index, durationNanos);
+      long max;
+      while ((max = phaseMaxima.get(index)) < durationNanos
+         && !phaseMaxima.compareAndSet(index, max, durationNanos)) {
+         // another thread raised the maximum, compares again
+      }
+
+      FeedbackMetricsListener[] current = listeners;
+      for (int i = 0; i < current.length; i++)
+         current[i].onPhase(phase, durationNanos);
+   }
+
+   /**
+    * Updates the number of tasks waiting for a send thread.
+    */
+   void setWaitingTasks(int depth) {
+      if (waitingTasks.getAndSet(depth) != depth)
+         notifyQueueDepth();
+   }
+
+   /**
+    * Counts feedback dropped as a duplicate of feedback already sent.
+    */
+   void recordDuplicate() {
+      duplicatesDropped.incrementAndGet();
+   }
+
+   /**
+    * Adjusts the number of feedback entries waiting in the outboxes.
+    */
+   void addQueuedFeedback(int delta) {
+      if (delta == 0)
+         return;
+      queuedFeedback.addAndGet(delta);
+      notifyQueueDepth();
+   }
+
+   private void notifyQueueDepth() {
+      FeedbackMetricsListener[] current = listeners;
+      for (int i = 0; i < current.length; i++)
+         current[i].onQueueDepth(waitingTasks.get(), queuedFeedback.get());
+   }
+
+   /**
+    * The metrics at one point in time.
+    */
+   public static class Snapshot {
+      private final long[] phaseCounts = new long[PHASES];
+      private final long[] phaseTotals = new long[PHASES];
+      private final long[] phaseMaxima = new long[PHASES];
+      private final long[] failures = new long[REASONS];
+      private final long attempts;
+      private final long successes;
+      private final long messagesSent;
+      private final long duplicatesDropped;
+      private final int waitingTasks;
+      private final int queuedFeedback;
+
+      private Snapshot(FeedbackMetrics metrics) {
+         for (int i = 0; i < PHASES; i++) {
+            phaseCounts[i] = metrics.phaseCounts.get(i);
+            phaseTotals[i] = metrics.phaseTotals.get(i);
+            phaseMaxima[i] = metrics.phaseMaxima.get(i);
+         }
+         for (int i = 0; i < REASONS; i++)
+            failures[i] = metrics.failures.get(i);
+         attempts = metrics.attempts.get();
+         successes = metrics.successes.get();
+         messagesSent = metrics.messagesSent.get();
+         duplicatesDropped = metrics.duplicatesDropped.get();
+         waitingTasks = metrics.waitingTasks.get();
+         queuedFeedback = metrics.queuedFeedback.get();
+      }
+
+      /**
+       * @return Number of times |phase| was timed.
+       */
+      public long getCount(Phase phase) {
+         return phaseCounts[phase.ordinal()];
+      }
+
+      /**
+       * @return Total time spent in |phase|.
+       */
+      public long getTotalNanos(Phase phase) {
+         return phaseTotals[phase.ordinal()];
+      }
+
+      /**
+       * @return Average time spent in |phase|, or 0 if it was never timed.
+       */
+      public long getMeanNanos(Phase phase) {
+         long count = getCount(phase);
+         return count == 0 ? 0 : getTotalNanos(phase) / count;
+      }
+
+      /**
+       * @return Longest time spent in |phase|.
+       */
+      public long getMaxNanos(Phase phase) {
+         return phaseMaxima[phase.ordinal()];
+      }
+
+      /**
+       * @return Number of send attempts.
+       */
+      public long getAttempts() {
+         return attempts;
+      }
+
+      /**
+       * @return Number of send attempts that succeeded.
+       */
+      public long getSuccesses() {
+         return successes;
+      }
+
+      /**
+       * @return Number of send attempts that failed for |reason|.
+       */
+      public long getFailures(MailSendException.Reason reason) {
+         return failures[reason.ordinal()];
+      }
+
+      /**
+       * @return Number of messages delivered.
+       */
+      public long getMessagesSent() {
+         return messagesSent;
+      }
+
+      /**
+       * @return Number of submissions dropped as duplicates.
+       */
+      public long getDuplicatesDropped() {
+         return duplicatesDropped;
+      }
+
+      /**
+       * @return Number of tasks waiting for a send thread.
+       */
+      public int getWaitingTasks() {
+         return waitingTasks;
+      }
+
+      /**
+       * @return Number of feedback entries waiting in the outboxes.
+       */
+      public int getQueuedFeedback() {
+         return queuedFeedback;
+      }
+   }
+}
@@ -0,0 +1,36 @@
+package com.jonathanwho.mirandafeedback;
+
+import com.jonathanwho.mail.MailSendException;
+
+/**
+ * Receives the library's send metrics as they are recorded, e.g. to forward
+ * them to the app's own telemetry. Register it with
+ * {@link FeedbackMetrics#addListener(FeedbackMetricsListener)}.
+ *
+ * Callbacks run on the thread that did the work, usually a send thread, and
+ * must return quickly.
+ */
+public interface FeedbackMetricsListener {
+
+   /**
+    * A phase of a send has been timed. Phases a send did not go through, such
+    * as connecting when a pooled connection was reused, are not reported.
+    * @param phase The phase.
+    * @param durationNanos Time spent in it.
+    */
+   void onPhase(FeedbackMetrics.Phase phase, long durationNanos);
+
+   /**
+    * A send attempt has finished.
+    * @param messages Number of messages delivered.
+    * @param failure Why the attempt failed, or null if it succeeded.
+    */
+   void onSendFinished(int messages, MailSendException.Reason failure);
+
+   /**
+    * The number of waiting sends has changed.
+    * @param waitingTasks Tasks waiting for a send thread.
+    * @param queuedFeedback Feedback waiting in the outboxes.
+    */
+   void onQueueDepth(int waitingTasks, int queuedFeedback);
+}
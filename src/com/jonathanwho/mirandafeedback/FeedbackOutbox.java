@@ -0,0 +1,496 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.jonathanwho.mail.Attachment;
+import com.jonathanwho.mail.MailSendException;
+import com.jonathanwho.mail.RetryPolicy;
+
+/**
+ * Durable queue of feedback that could not be sent right away.
+ *
+ * Feedback is appended to an {@link OutboxJournal} in the app's files
+ * directory, so it survives process death. Whenever a network becomes
+ * available the outbox is drained in the background through its
+ * {@link FeedbackTransport}, a {@link GmailTransport} unless another one is
+ * set, and the journal is compacted. Feedback left behind by
+ * a previous process is drained the next time the outbox is obtained.
+ *
+ * An entry leaves the journal only once the transport returned from sending
+ * it, or failed with a {@link MailSendException} that is not worth
+ * retrying. A transport must therefore throw on every failure instead of
+ * swallowing it, as {@link GmailTransport} and {@link HttpJsonTransport} do.
+ *
+ * In digest mode every submission goes through the outbox and queued
+ * feedback is handed to the transport as one batch once the oldest entry
+ * has waited for the digest window or the batch is full.
+ *
+ * With a {@link SendPolicy} other than immediate, every submission goes
+ * through the outbox too. Nothing is sent until the policy allows it, e.g.
+ * on Wi-Fi, then the whole queue is sent in one go so the radio wakes up
+ * once.
+ *
+ * Sends and the number of queued entries are recorded in
+ * {@link FeedbackMetrics}.
+ */
+public class FeedbackOutbox {
+   private static final String TAG = "FeedbackOutbox";
+   private static final String FILE_PREFIX = "miranda_outbox_";
+   private static final String SENT_FILE_PREFIX = "miranda_sent_";
+   private static final int ENTRY_VERSION = 3;
+   /** Number of entries sent over one session when not in digest mode */
+   private static final int DRAIN_BATCH = 16;
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   /** One outbox per Gmail account */
+   private static final Map<String, FeedbackOutbox> outboxes =
+      new HashMap<String, FeedbackOutbox>();
+
+   private final OutboxJournal journal;
+   private final DuplicateFilter duplicates;
+   /** Decides when queued feedback is sent */
+   private final SendScheduler scheduler;
+   private final ScheduledExecutorService drainer;
+   private final String fromEmail;
+   /** Current password of the account, guarded by this */
+   private String password;
+   /** Created on first use, so that only a send loads the mail classes */
+   private volatile FeedbackTransport transport;
+   /** The transport created for the account, which follows its password */
+   private GmailTransport accountTransport;
+   private final FeedbackMetrics metrics = FeedbackMetrics.getInstance();
+   /** Number of entries last reported to the metrics */
+   private int reportedSize;
+
+   /** Digest settings, a max batch size of 1 disables digest mode */
+   private volatile long digestWindowMs;
+   private volatile int digestMaxBatch = 1;
+   /** The pending drain at the end of the digest window or backoff */
+   private Future<?> scheduledDrain;
+
+   /** Backoff state of the oldest entry, only used on the drainer thread */
+   private final RetryPolicy retryPolicy = new RetryPolicy();
+   private int failedAttempts;
+   private long retryAt;
+   private MailSendException.Reason lastFailure;
+
+   /**
+    * Returns the outbox of a Gmail account and starts draining anything that
+    * is still queued in it. If the outbox already exists with another
+    * password, it sends with |password| from now on.
+    * @param context Any context, only its application context is kept.
+    * @param fromEmail Gmail account the queued feedback is sent from.
+    * @param password Password of the gmail account.
+    */
+   public static FeedbackOutbox get(Context context, String fromEmail, String password) {
+      synchronized (outboxes) {
+         FeedbackOutbox outbox = outboxes.get(fromEmail);
+         if (outbox == null) {
+            outbox = new FeedbackOutbox(context.getApplicationContext(), fromEmail, password);
+            outboxes.put(fromEmail, outbox);
+            outbox.drain();
+         } else {
+            outbox.setPassword(password);
+         }
+         return outbox;
+      }
+   }
+
+   /**
+    * @return The outbox of |fromEmail| if one was obtained in this process,
+    *    null otherwise.
+    */
+   static FeedbackOutbox find(String fromEmail) {
+      synchronized (outboxes) {
+         return outboxes.get(fromEmail);
+      }
+   }
+
+   private FeedbackOutbox(Context context, String fromEmail, String password) {
+      this.fromEmail = fromEmail;
+      this.password = password;
+      String accountId = Integer.toHexString(fromEmail.toLowerCase().hashCode());
+      journal = new OutboxJournal(new File(context.getFilesDir(), FILE_PREFIX + accountId));
+      duplicates = new DuplicateFilter(new File(context.getFilesDir(), SENT_FILE_PREFIX + accountId));
+      drainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      scheduler =
+         new SendScheduler(SendScheduler.systemClock(drainer), new AndroidDeviceState(context));
+
+      // drains whenever connectivity comes back or a charger is plugged in
+      IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+      filter.addAction(Intent.ACTION_POWER_CONNECTED);
+      context.registerReceiver(new BroadcastReceiver() {
+         @Override
+         public void onReceive(Context context, Intent intent) {
+            if (isConnected())
+               onConnected();
+         }
+      }, filter);
+   }
+
+   /**
+    * Switches the account to |password|, for the transport created for it. A
+    * transport set with {@link #setTransport(FeedbackTransport)} keeps its
+    * own credentials.
+    */
+   synchronized void setPassword(String password) {
+      if (password.equals(this.password))
+         return;
+      this.password = password;
+      if (accountTransport != null)
+         accountTransport.setPassword(password);
+   }
+
+   /**
+    * Replaces the transport feedback is delivered through.
+    * @param transport The new transport.
+    */
+   public void setTransport(FeedbackTransport transport) {
+      this.transport = transport;
+   }
+
+   /**
+    * @return The transport feedback is delivered through, a
+    *    {@link GmailTransport} unless another one was set.
+    */
+   public FeedbackTransport getTransport() {
+      FeedbackTransport current = transport;
+      if (current == null) {
+         synchronized (this) {
+            if (transport == null)
+               transport = accountTransport = new GmailTransport(fromEmail, password);
+            current = transport;
+         }
+      }
+      return current;
+   }
+
+   /**
+    * Merges queued feedback into one email per window.
+    * @param windowMs How long the oldest entry may wait for others to join it.
+    * @param maxBatchSize Number of entries that triggers an early send.
+    *    1 disables digest mode.
+    */
+   public void setDigestMode(long windowMs, int maxBatchSize) {
+      digestWindowMs = windowMs;
+      digestMaxBatch = Math.max(1, maxBatchSize);
+   }
+
+   /**
+    * Sets when queued feedback is sent. Unless the policy is immediate,
+    * every submission is queued and the queue is sent in one go once the
+    * policy allows it.
+    * @param policy The new policy.
+    */
+   public void setSendPolicy(SendPolicy policy) {
+      scheduler.setPolicy(policy);
+      drain();
+   }
+
+   /**
+    * @return When queued feedback is sent.
+    */
+   public SendPolicy getSendPolicy() {
+      return scheduler.getPolicy();
+   }
+
+   /**
+    * @return True if queued feedback is merged into digests.
+    */
+   public boolean isDigestMode() {
+      return digestMaxBatch > 1;
+   }
+
+   /**
+    * Drops feedback identical to feedback this account sent within
+    * |windowMs|.
+    * @param windowMs How long the same feedback is dropped, 0 to send
+    *    everything.
+    * @param maxEntries Number of different submissions remembered.
+    */
+   public void setDuplicateWindow(long windowMs, int maxEntries) {
+      duplicates.setWindow(windowMs, maxEntries);
+   }
+
+   /**
+    * @return The recently sent feedback of this account.
+    */
+   DuplicateFilter getDuplicateFilter() {
+      return duplicates;
+   }
+
+   /**
+    * Writes feedback to the outbox. Blocks on disk I/O, so this must not be
+    * called on the main thread.
+    * @param message The feedback to deliver.
+    */
+   public void enqueue(FeedbackMessage message) throws IOException {
+      journal.append(encode(message));
+      reportQueuedFeedback();
+
+      if (isConnected())
+         drain();
+   }
+
+   /**
+    * Sends the queued feedback in the background, oldest first. A recoverable
+    * failure is retried with exponential backoff, an entry that cannot be
+    * sent is dropped. An entry over the account's rate limit waits until the
+    * limit allows it. Nothing is sent until the {@link SendPolicy} allows
+    * it, then everything is.
+    */
+   public void drain() {
+      drainer.execute(new Runnable() {
+         public void run() {
+            drainNow();
+         }
+      });
+   }
+
+   /**
+    * Drains right away if the last send failed for lack of a connection,
+    * otherwise honors the backoff.
+    */
+   private void onConnected() {
+      drainer.execute(new Runnable() {
+         public void run() {
+            if (lastFailure == MailSendException.Reason.CONNECT)
+               retryAt = 0;
+            drainNow();
+         }
+      });
+   }
+
+   /**
+    * Runs on the drainer thread.
+    */
+   private void drainNow() {
+      try {
+         int maxBatch = digestMaxBatch;
+         // once the policy allowed a send, the whole queue goes in that wake-up
+         boolean flushing = false;
+         while (isConnected()) {
+            long now = scheduler.now();
+            if (now < retryAt) {
+               scheduleDrain(retryAt - now);
+               break;
+            }
+
+            boolean digest = maxBatch > 1;
+            List<byte[]> records = journal.peek(digest ? maxBatch : DRAIN_BATCH);
+            if (records.isEmpty())
+               break;
+
+            List<FeedbackMessage> batch = new ArrayList<FeedbackMessage>(records.size());
+            for (byte[] record : records)
+               batch.add(decode(record));
+
+            FeedbackMessage first = batch.get(0);
+            if (first == null) {
+               Log.w(TAG, "Dropping outbox entry of an unknown version");
+               journal.remove(1);
+               continue;
+            }
+
+            if (!flushing) {
+               long wait = scheduler.delayMs(first.getTimestamp());
+               if (wait > 0) {
+                  // the connectivity and power broadcasts drain again
+                  if (wait != SendScheduler.WAIT_FOR_DEVICE)
+                     scheduleDrain(wait);
+                  break;
+               }
+            }
+
+            if (digest && batch.size() < maxBatch) {
+               // waits for the digest window to close or the batch to fill up
+               long wait = first.getTimestamp() + digestWindowMs - now;
+               if (wait > 0) {
+                  scheduleDrain(wait);
+                  break;
+               }
+            }
+
+            // a digest holds entries that can be merged, otherwise entries are
+            // sent one by one over one session, up to an unreadable entry
+            int size = 1;
+            while (size < batch.size()
+               && (digest ? first.canMergeWith(batch.get(size)) : batch.get(size) != null))
+               size++;
+
+            long start = metrics.startSend();
+            try {
+               if (digest) {
+                  getTransport().send(batch.subList(0, size));
+               } else {
+                  size = getTransport().sendEach(batch.subList(0, size));
+               }
+               metrics.finishSend(start, size, null);
+               flushing = true;
+               failedAttempts = 0;
+               lastFailure = null;
+            } catch (MailSendException e) {
+               if (e.getReason() == MailSendException.Reason.UNCONFIRMED) {
+                  // most likely queued by the server, sending it again could duplicate it
+                  Log.w(TAG, "Queued feedback may have been sent without a reply", e);
+                  if (!digest)
+                     size = 1; // only the first entry was tried
+                  metrics.finishSend(start, size, null);
+                  flushing = true;
+                  failedAttempts = 0;
+                  lastFailure = null;
+               } else {
+                  metrics.finishSend(start, 0, e.getReason());
+                  lastFailure = e.getReason();
+                  if (e.getReason() == MailSendException.Reason.RATE_LIMITED) {
+                     // not a failure, waits until the rate limit allows the next send
+                     long delay = Math.max(0, e.getRetryAfterMs());
+                     metrics.recordPhase(FeedbackMetrics.Phase.DEFERRED,
+                        TimeUnit.MILLISECONDS.toNanos(delay));
+                     retryAt = now + delay;
+                     scheduleDrain(delay);
+                     break;
+                  }
+                  failedAttempts++;
+                  if (retryPolicy.shouldRetry(e, failedAttempts)) {
+                     long delay = retryPolicy.delayMs(failedAttempts);
+                     Log.w(TAG, "Could not send queued feedback, retrying in " + delay + " ms", e);
+                     retryAt = now + delay;
+                     scheduleDrain(delay);
+                     break;
+                  }
+                  Log.w(TAG, "Dropping queued feedback that cannot be sent", e);
+                  failedAttempts = 0;
+                  if (!digest)
+                     size = 1; // only the first entry was tried
+               }
+            }
+            journal.remove(size);
+            reportQueuedFeedback();
+         }
+         journal.compact();
+         reportQueuedFeedback();
+      } catch (IOException e) {
+         Log.w(TAG, "Could not read the outbox", e);
+      }
+   }
+
+   /**
+    * Reports the change in the number of queued entries to the metrics.
+    */
+   private synchronized void reportQueuedFeedback() throws IOException {
+      int size = journal.size();
+      metrics.addQueuedFeedback(size - reportedSize);
+      reportedSize = size;
+   }
+
+   private void scheduleDrain(long delayMs) {
+      if (scheduledDrain != null)
+         scheduledDrain.cancel(false);
+      scheduledDrain = scheduler.schedule(new Runnable() {
+         public void run() {
+            drainNow();
+         }
+      }, delayMs);
+   }
+
+   /**
+    * @return True if there is an active network connection.
+    */
+   boolean isConnected() {
+      return scheduler.isConnected();
+   }
+
+   /**
+    * Serializes a message for the journal.
+    */
+   private static byte[] encode(FeedbackMessage message) throws IOException {
+      int size = message.getBody().length() + 128;
+      for (Attachment attachment : message.getAttachments())
+         size += attachment.getLength() + 64;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(ENTRY_VERSION);
+      out.writeLong(message.getTimestamp());
+      out.writeBoolean(message.isTextEmail());
+      writeString(out, message.getSubject());
+      writeString(out, message.getRecipientEmail());
+      writeString(out, message.getBody().toString());
+      out.writeInt(message.getAttachments().size());
+      for (Attachment attachment : message.getAttachments()) {
+         writeString(out, attachment.getName());
+         writeString(out, attachment.getMimeType());
+         out.writeInt(attachment.getLength());
+         out.write(attachment.getData(), 0, attachment.getLength());
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }
+
+   /**
+    * @return The message stored in |record|, or null if it was written by an
+    *    unknown version.
+    */
+   private static FeedbackMessage decode(byte[] record) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      int version = in.readByte();
+      if (version < 1 || version > ENTRY_VERSION)
+         return null;
+      long timestamp = version >= 2 ? in.readLong() : 0;
+      boolean textEmail = in.readBoolean();
+      String subject = readString(in);
+      String recipientEmail = readString(in);
+      String body = readString(in);
+      List<Attachment> attachments = new ArrayList<Attachment>();
+      int count = version >= 3 ? in.readInt() : 0;
+      for (int i = 0; i < count; i++) {
+         String name = readString(in);
+         String mimeType = readString(in);
+         byte[] data = new byte[in.readInt()];
+         in.readFully(data);
+         attachments.add(new Attachment(name, mimeType, data));
+      }
+      return new FeedbackMessage(subject, recipientEmail, textEmail, body, timestamp,
+         attachments);
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes(UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, UTF_8);
+   }
+}
@@ -0,0 +1,264 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.jonathanwho.mail.Attachment;
+import com.jonathanwho.mail.MailSendException;
+
+/**
+ * Feedback on its way from a {@link FeedbackDialog} to the transport.
+ *
+ * A submission belongs to the process, not to the dialog that started it.
+ * Its background work holds no reference to a Fragment or an Activity, so a
+ * slow send never keeps a destroyed Activity alive. Its outcome is handed to
+ * the dialog attached at that moment, or kept until one attaches, such as
+ * the dialog recreated after a rotation. An outcome no dialog takes within
+ * {@link #RESULT_RETENTION_MS}, because the Activity finished, is dropped
+ * with the submission. Everything but the background work runs on the main
+ * thread. {@link FeedbackClient} runs the same work without
+ * a dialog.
+ */
+class FeedbackSubmission {
+   /** Receives the outcome of a submission on the main thread */
+   interface Listener {
+      void onSubmissionFinished(DeliveryResult result);
+   }
+
+   /** How long an outcome waits for a dialog to attach */
+   static final long RESULT_RETENTION_MS = 60 * 1000;
+
+   private static final String TAG = "FeedbackSubmission";
+
+   /** Submissions whose outcome was not delivered yet, by id */
+   private static final Map<Long, FeedbackSubmission> pending =
+      new HashMap<Long, FeedbackSubmission>();
+   /**
+    * Starts from the time the process started, so an id saved by the dialog
+    * of an earlier process never names a submission of this one
+    */
+   private static long nextId = System.currentTimeMillis() << 20;
+   private static Handler mainHandler;
+
+   private final long id;
+   private final FeedbackOutbox outbox;
+   private final String subject;
+   private final String recipientEmail;
+   private final boolean textEmail;
+   private final String body;
+   private final Attachment data;
+   private final boolean sendNow;
+   private final boolean attachLog;
+   private final Screenshot screenshot;
+   private final long hash;
+
+   private Listener listener;
+   /** The outcome, or null while the send is running */
+   private DeliveryResult result;
+   /** Forgets the outcome if no dialog took it in time */
+   private final Runnable evict = new Runnable() {
+      public void run() {
+         synchronized (pending) {
+            pending.remove(id);
+         }
+      }
+   };
+
+   /**
+    * Construct a new FeedbackSubmission. Call {@link #send()} on a send
+    * thread, or {@link #start} instead to have it run and report to a dialog.
+    */
+   FeedbackSubmission(FeedbackOutbox outbox, String subject, String recipientEmail,
+      boolean textEmail, String body, Attachment data, boolean sendNow, boolean attachLog,
+      Screenshot screenshot, long hash) {
+      synchronized (pending) {
+         id = nextId++;
+      }
+      this.outbox = outbox;
+      this.subject = subject;
+      this.recipientEmail = recipientEmail;
+      this.textEmail = textEmail;
+      this.body = body;
+      this.data = data;
+      this.sendNow = sendNow;
+      this.attachLog = attachLog;
+      this.screenshot = screenshot;
+      this.hash = hash;
+   }
+
+   /**
+    * Starts sending feedback in the background.
+    * @param outbox Outbox of the account the feedback is sent from.
+    * @param data The {@link FeedbackData} part, or null.
+    * @param sendNow True to try the transport before queuing the feedback.
+    * @param attachLog True to attach the {@link FeedbackLog}.
+    * @param screenshot The screenshot to attach, or null.
+    * @param hash Hash of the form, see {@link DuplicateFilter}.
+    * @return The submission, to {@link #attach(Listener)} to.
+    * @throws RejectedExecutionException If too many sends are in flight.
+    */
+   static FeedbackSubmission start(FeedbackOutbox outbox, String subject, String recipientEmail,
+      boolean textEmail, String body, Attachment data, boolean sendNow, boolean attachLog,
+      Screenshot screenshot, long hash) {
+      final FeedbackSubmission submission =
+         new FeedbackSubmission(outbox, subject, recipientEmail, textEmail, body, data, sendNow,
+            attachLog, screenshot, hash);
+      SendExecutor.getInstance().submit(SendExecutor.Priority.NORMAL,
+         new SendTask<DeliveryResult>() {
+            @Override
+            protected DeliveryResult doInBackground() {
+               return submission.send();
+            }
+
+            @Override
+            protected void onPostExecute(DeliveryResult result) {
+               submission.finish(result);
+            }
+
+            @Override
+            protected void onError(Exception error) {
+               Log.w(TAG, "Could not send feedback", error);
+               submission.finish(DeliveryResult.FAILED);
+            }
+
+            @Override
+            protected void onCancelled() {
+               submission.finish(DeliveryResult.FAILED);
+            }
+         });
+      synchronized (pending) {
+         pending.put(submission.id, submission);
+      }
+      return submission;
+   }
+
+   /**
+    * @return The submission with |id| if its outcome was not delivered yet,
+    *    null otherwise.
+    */
+   static FeedbackSubmission get(long id) {
+      synchronized (pending) {
+         return pending.get(id);
+      }
+   }
+
+   /**
+    * @return Identifies the submission across the recreation of the dialog.
+    */
+   long getId() {
+      return id;
+   }
+
+   /**
+    * Hands the outcome to |listener| once it is known, right away if it is.
+    * A delivered submission is forgotten.
+    */
+   void attach(Listener listener) {
+      this.listener = listener;
+      if (result != null)
+         deliver();
+   }
+
+   /**
+    * Stops handing the outcome to |listener|. It is kept until the next
+    * {@link #attach(Listener)}.
+    */
+   void detach(Listener listener) {
+      if (this.listener == listener)
+         this.listener = null;
+   }
+
+   private void finish(DeliveryResult result) {
+      this.result = result;
+      if (listener != null)
+         deliver();
+      else
+         mainHandler().postDelayed(evict, RESULT_RETENTION_MS);
+   }
+
+   private void deliver() {
+      mainHandler().removeCallbacks(evict);
+      synchronized (pending) {
+         pending.remove(id);
+      }
+      Listener current = listener;
+      listener = null;
+      current.onSubmissionFinished(result);
+   }
+
+   private static Handler mainHandler() {
+      if (mainHandler == null)
+         mainHandler = new Handler(Looper.getMainLooper());
+      return mainHandler;
+   }
+
+   /**
+    * Sends the feedback through the outbox's transport, or queues it if
+    * there is no network, the send fails temporarily or the
+    * {@link SendPolicy} defers it. Runs on a send thread.
+    */
+   DeliveryResult send() {
+      DuplicateFilter duplicates = outbox.getDuplicateFilter();
+      if (!duplicates.admit(hash)) {
+         FeedbackMetrics.getInstance().recordDuplicate();
+         // the screenshot is owned here and will not be compressed
+         if (screenshot != null)
+            screenshot.release();
+         return DeliveryResult.DUPLICATE;
+      }
+      List<Attachment> attachments = new ArrayList<Attachment>(3);
+      // right after the body, where a reader finds it first
+      if (data != null)
+         attachments.add(data);
+      if (attachLog)
+         attachments.add(FeedbackLog.getInstance().snapshot());
+      Attachment picture = screenshot == null ? null : screenshot.compress();
+      if (picture != null)
+         attachments.add(picture);
+      FeedbackMessage message =
+         new FeedbackMessage(subject, recipientEmail, textEmail, body,
+            System.currentTimeMillis(), attachments);
+      DeliveryResult queued =
+         outbox.getSendPolicy().isImmediate() ? DeliveryResult.QUEUED : DeliveryResult.DEFERRED;
+      if (sendNow) {
+         FeedbackMetrics metrics = FeedbackMetrics.getInstance();
+         long start = metrics.startSend();
+         try {
+            outbox.getTransport().send(message);
+            metrics.finishSend(start, 1, null);
+            return DeliveryResult.SENT;
+         } catch (MailSendException e) {
+            if (e.getReason() == MailSendException.Reason.UNCONFIRMED) {
+               // most likely queued by the server, sending it again could duplicate it
+               Log.w(TAG, "Feedback may have been sent without a reply", e);
+               metrics.finishSend(start, 1, null);
+               return DeliveryResult.SENT;
+            }
+            metrics.finishSend(start, 0, e.getReason());
+            Log.w(TAG, "Could not send feedback, " + e.getReason(), e);
+            if (!e.isRecoverable()) {
+               duplicates.forget(hash);
+               return DeliveryResult.FAILED;
+            }
+            if (e.getReason() == MailSendException.Reason.RATE_LIMITED)
+               queued = DeliveryResult.DEFERRED;
+         }
+      }
+      try {
+         outbox.enqueue(message);
+         return queued;
+      } catch (IOException e) {
+         Log.w(TAG, "Could not queue feedback", e);
+      }
+      duplicates.forget(hash);
+      return DeliveryResult.FAILED;
+   }
+}
@@ -0,0 +1,47 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.List;
+
+import com.jonathanwho.mail.MailSendException;
+
+/**
+ * Delivers feedback. {@link GmailTransport} sends it as email,
+ * {@link HttpJsonTransport} posts it to a web endpoint.
+ */
+public interface FeedbackTransport {
+
+   /**
+    * Delivers one message. Called on a background thread.
+    * @param message The message to deliver.
+    * @throws MailSendException If the message was not delivered. Its Reason
+    *    tells whether it is worth retrying.
+    */
+   void send(FeedbackMessage message) throws MailSendException;
+
+   /**
+    * Delivers several messages at once. Called on a background thread with
+    * messages that all share a format, subject and recipient.
+    * @param messages The messages to deliver, oldest first.
+    * @throws MailSendException If the messages were not delivered. None of
+    *    them count as delivered.
+    */
+   void send(List<FeedbackMessage> messages) throws MailSendException;
+
+   /**
+    * Delivers messages one by one, in order, reusing one connection. Called
+    * on a background thread.
+    * @param messages The messages to deliver, oldest first.
+    * @return Number of messages delivered, oldest first. Delivery stops at
+    *    the first failure, the rest can be delivered again later.
+    * @throws MailSendException If not even the first message was delivered.
+    */
+   int sendEach(List<FeedbackMessage> messages) throws MailSendException;
+
+   /**
+    * Does the expensive setup of a send, such as loading classes, resolving
+    * the host and connecting, ahead of time. Called on a background thread
+    * while the user is still filling out the form. Best effort, must not
+    * throw.
+    */
+   void prewarm();
+}
@@ -0,0 +1,162 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import com.jonathanwho.mail.Attachment;
+import com.jonathanwho.mail.GmailSender;
+import com.jonathanwho.mail.MailSendException;
+import com.jonathanwho.mail.OutgoingMail;
+
+/**
+ * Sends feedback as email from a Gmail account through {@link GmailSender}.
+ * Several messages are merged into one digest email with a section per
+ * message. An HTML digest is a single table, with a heading row before the
+ * rows of every message.
+ */
+public class GmailTransport implements FeedbackTransport {
+   private static final String DIGEST_SUBJECT_FORMAT = "%s (%d responses)";
+   private static final String DIGEST_HTML_SECTION =
+      "<tr><td colspan=\"2\"><h3>Feedback %d of %d, received %s</h3></td></tr>\n";
+   private static final String DIGEST_TEXT_SECTION = "--- Feedback %d of %d, received %s ---\n";
+
+   private final String gmailFromEmail;
+   private volatile String gmailPassword;
+   private final String host;
+   private final int port;
+   private final boolean ssl;
+   /** Rate limit of the account, applied by the next sender once it changed */
+   private int rateBurst;
+   private int ratePerHour;
+   private boolean rateChanged;
+
+   /**
+    * Construct a new GmailTransport.
+    * @param fromEmail Gmail account (include @gmail.com)
+    * @param password Password of the gmail account
+    */
+   public GmailTransport(String fromEmail, String password) {
+      this(fromEmail, password, GmailSender.DEFAULT_HOST, GmailSender.DEFAULT_PORT, true);
+   }
+
+   /**
+    * Construct a GmailTransport that sends through another SMTP server.
+    * @param fromEmail Account feedback is sent from
+    * @param password Password of the account
+    * @param host Host name of the SMTP server
+    * @param port Port of the SMTP server
+    * @param ssl True for SMTPS, false for plain SMTP
+    */
+   public GmailTransport(String fromEmail, String password, String host, int port, boolean ssl) {
+      gmailFromEmail = fromEmail;
+      gmailPassword = password;
+      this.host = host;
+      this.port = port;
+      this.ssl = ssl;
+   }
+
+   /**
+    * Changes the password of the account, used from the next send on.
+    */
+   public void setPassword(String password) {
+      gmailPassword = password;
+   }
+
+   /**
+    * Limits how fast the account sends from this device. The limit is set on
+    * the account once, by the next send, so that the tokens it has used up
+    * stay used.
+    * @see GmailSender#setRateLimit(int, int)
+    */
+   public synchronized void setRateLimit(int burst, int perHour) {
+      rateBurst = burst;
+      ratePerHour = perHour;
+      rateChanged = true;
+   }
+
+   public void send(FeedbackMessage message) throws MailSendException {
+      send(message.getSubject(), message.getBody(), message.getAttachments(), message);
+   }
+
+   public void send(List<FeedbackMessage> messages) throws MailSendException {
+      FeedbackMessage first = messages.get(0);
+      if (messages.size() == 1) {
+         send(first);
+      } else {
+         List<Attachment> attachments = new ArrayList<Attachment>();
+         for (FeedbackMessage message : messages)
+            attachments.addAll(message.getAttachments());
+         send(String.format(Locale.US, DIGEST_SUBJECT_FORMAT, first.getSubject(), messages.size()),
+            digestBody(messages, first.isTextEmail()), attachments, first);
+      }
+   }
+
+   /**
+    * Sends the leading messages that share a format over one SMTP session,
+    * with the envelopes pipelined when the server supports it.
+    */
+   public int sendEach(List<FeedbackMessage> messages) throws MailSendException {
+      boolean textEmail = messages.get(0).isTextEmail();
+      List<OutgoingMail> mails = new ArrayList<OutgoingMail>(messages.size());
+      for (FeedbackMessage message : messages) {
+         if (message.isTextEmail() != textEmail)
+            break;
+         mails.add(new OutgoingMail(message.getSubject(), message.getBody(), message
+            .getRecipientEmail(), message.getAttachments()));
+      }
+      return newSender(textEmail).sendMails(mails, gmailFromEmail);
+   }
+
+   public void prewarm() {
+      // building the sender loads javax.mail and registers the JSSE provider
+      newSender(false).prewarm();
+   }
+
+   private void send(String subject, CharSequence body, List<Attachment> attachments,
+      FeedbackMessage message) throws MailSendException {
+      newSender(message.isTextEmail()).sendMail(subject, body, gmailFromEmail,
+         message.getRecipientEmail(), attachments);
+   }
+
+   private GmailSender newSender(boolean textEmail) {
+      GmailSender sender = new GmailSender(gmailFromEmail, gmailPassword, textEmail, host, port, ssl);
+      synchronized (this) {
+         if (rateChanged) {
+            sender.setRateLimit(rateBurst, ratePerHour);
+            rateChanged = false;
+         }
+      }
+      return sender;
+   }
+
+   /**
+    * Formats messages as one body with a section per message.
+    */
+   private static CharSequence digestBody(List<FeedbackMessage> messages, boolean textEmail) {
+      DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+      String sectionFormat = textEmail ? DIGEST_TEXT_SECTION : DIGEST_HTML_SECTION;
+      int length = 0;
+      for (FeedbackMessage message : messages)
+         length += message.getBody().length() + 64;
+
+      StringBuilder body = new StringBuilder(length);
+      if (!textEmail)
+         body.append(EmailTemplate.HTML_OPEN);
+      for (int i = 0; i < messages.size(); i++) {
+         FeedbackMessage message = messages.get(i);
+         body.append(String.format(Locale.US, sectionFormat, i + 1, messages.size(),
+            dateFormat.format(new Date(message.getTimestamp()))));
+         if (textEmail)
+            body.append(message.getBody()).append('\n');
+         else
+            EmailTemplate.appendHtmlRows(message.getBody(), body);
+      }
+      if (!textEmail)
+         body.append(EmailTemplate.HTML_CLOSE);
+      return body;
+   }
+}
@@ -0,0 +1,64 @@
+package com.jonathanwho.mirandafeedback;
+
+/**
+ * Escapes text for use inside HTML element content and attribute values.
+ * Runs of characters that need no escaping are appended as a whole, so
+ * escaping text without markup costs a single append and no allocation.
+ */
+public final class HtmlEscaper {
+
+   private HtmlEscaper() {
+   }
+
+   /**
+    * Appends |text| to |out| with HTML special characters escaped and line
+    * breaks turned into &lt;br/&gt;.
+    * @param text The text to escape.
+    * @param out The buffer to write to.
+    * @return |out|
+    */
+   public static StringBuilder escape(CharSequence text, StringBuilder out) {
+      int length = text.length();
+      int start = 0;
+      for (int i = 0; i < length; i++) {
+         String replacement;
+         char c = text.charAt(i);
+         switch (c) {
+         case '&':
+            replacement = "&amp;";
+            break;
+         case '<':
+            replacement = "&lt;";
+            break;
+         case '>':
+            replacement = "&gt;";
+            break;
+         case '"':
+            replacement = "&quot;";
+            break;
+         case '\'':
+            replacement = "&#39;";
+            break;
+         case '\n':
+            replacement = "<br/>";
+            break;
+         case '\r':
+            replacement = "";
+            break;
+         default:
+            continue;
+         }
+         out.append(text, start, i).append(replacement);
+         start = i + 1;
+      }
+      return out.append(text, start, length);
+   }
+
+   /**
+    * @param text The text to escape.
+    * @return |text| with HTML special characters escaped.
+    */
+   public static String escape(CharSequence text) {
+      return escape(text, new StringBuilder(text.length() + 16)).toString();
+   }
+}
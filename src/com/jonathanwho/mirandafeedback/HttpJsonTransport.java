@@ -0,0 +1,223 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLException;
+
+import com.jonathanwho.mail.Attachment;
+import com.jonathanwho.mail.MailSendException;
+
+/**
+ * Posts feedback as gzipped JSON to a web endpoint:
+ *
+ * {"messages":[{"subject":"...","recipient":"...","format":"html",
+ *    "timestamp":1400000000000,"body":"...",
+ *    "attachments":[{"name":"...","type":"...","data":"base64..."}]}, ...]}
+ *
+ * The attachments member is left out when a message has none.
+ * A batch of messages goes out as a single request. The JSON is streamed
+ * straight into the compressor, and the response is read to the end so the
+ * platform keeps the connection alive for the next request.
+ *
+ * 2xx responses count as delivered. 408, 429 and 5xx responses are
+ * reported as {@link MailSendException.Reason#THROTTLED}, other responses as
+ * {@link MailSendException.Reason#PERMANENT}.
+ */
+public class HttpJsonTransport implements FeedbackTransport {
+   private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+   private static final int READ_TIMEOUT_MS = 30 * 1000;
+   private static final int BUFFER_SIZE = 4096;
+   private static final char[] BASE64 =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+   private final URL endpoint;
+
+   /**
+    * Construct a new HttpJsonTransport.
+    * @param endpoint The URL the feedback is posted to.
+    */
+   public HttpJsonTransport(URL endpoint) {
+      this.endpoint = endpoint;
+   }
+
+   public void send(FeedbackMessage message) throws MailSendException {
+      send(Collections.singletonList(message));
+   }
+
+   public void send(List<FeedbackMessage> messages) throws MailSendException {
+      try {
+         HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+         connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+         connection.setReadTimeout(READ_TIMEOUT_MS);
+         connection.setDoOutput(true);
+         connection.setChunkedStreamingMode(0);
+         connection.setRequestMethod("POST");
+         connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+         connection.setRequestProperty("Content-Encoding", "gzip");
+
+         Writer out =
+            new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+               connection.getOutputStream(), BUFFER_SIZE), "UTF-8"), BUFFER_SIZE);
+         try {
+            writeJson(messages, out);
+         } finally {
+            out.close();
+         }
+
+         int status = connection.getResponseCode();
+         drain(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+         if (status / 100 == 2)
+            return;
+         MailSendException.Reason reason =
+            status == 408 || status == 429 || status >= 500 ? MailSendException.Reason.THROTTLED
+               : MailSendException.Reason.PERMANENT;
+         throw new MailSendException(reason, status, new IOException("HTTP " + status + " "
+            + connection.getResponseMessage()));
+      } catch (SSLException e) {
+         throw new MailSendException(MailSendException.Reason.TLS, -1, e);
+      } catch (IOException e) {
+         throw new MailSendException(MailSendException.Reason.CONNECT, -1, e);
+      }
+   }
+
+   /**
+    * Posts all |messages| in one request.
+    */
+   public int sendEach(List<FeedbackMessage> messages) throws MailSendException {
+      send(messages);
+      return messages.size();
+   }
+
+   public void prewarm() {
+      try {
+         // the platform caches the lookup for the send
+         InetAddress.getByName(endpoint.getHost());
+      } catch (IOException e) {
+         // best effort
+      }
+   }
+
+   /**
+    * Writes |messages| as the JSON document described above.
+    */
+   static void writeJson(List<FeedbackMessage> messages, Writer out) throws IOException {
+      out.write("{\"messages\":[");
+      for (int i = 0; i < messages.size(); i++) {
+         FeedbackMessage message = messages.get(i);
+         if (i > 0)
+            out.write(',');
+         out.write("{\"subject\":");
+         writeString(message.getSubject(), out);
+         out.write(",\"recipient\":");
+         writeString(message.getRecipientEmail(), out);
+         out.write(message.isTextEmail() ? ",\"format\":\"text\"" : ",\"format\":\"html\"");
+         out.write(",\"timestamp\":");
+         out.write(Long.toString(message.getTimestamp()));
+         out.write(",\"body\":");
+         writeString(message.getBody(), out);
+         List<Attachment> attachments = message.getAttachments();
+         if (!attachments.isEmpty()) {
+            out.write(",\"attachments\":[");
+            for (int j = 0; j < attachments.size(); j++) {
+               Attachment attachment = attachments.get(j);
+               if (j > 0)
+                  out.write(',');
+               out.write("{\"name\":");
+               writeString(attachment.getName(), out);
+               out.write(",\"type\":");
+               writeString(attachment.getMimeType(), out);
+               out.write(",\"data\":\"");
+               writeBase64(attachment.getData(), attachment.getLength(), out);
+               out.write("\"}");
+            }
+            out.write(']');
+         }
+         out.write('}');
+      }
+      out.write("]}");
+   }
+
+   /**
+    * Writes |value| as a quoted JSON string.
+    */
+   static void writeString(CharSequence value, Writer out) throws IOException {
+      out.write('"');
+      int length = value.length();
+      for (int i = 0; i < length; i++) {
+         char c = value.charAt(i);
+         switch (c) {
+         case '"':
+            out.write("\\\"");
+            break;
+         case '\\':
+            out.write("\\\\");
+            break;
+         case '\n':
+            out.write("\\n");
+            break;
+         case '\r':
+            out.write("\\r");
+            break;
+         case '\t':
+            out.write("\\t");
+            break;
+         default:
+            if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+               String hex = Integer.toHexString(c);
+               out.write("\\u");
+               for (int pad = hex.length(); pad < 4; pad++)
+                  out.write('0');
+               out.write(hex);
+            } else {
+               out.write(c);
+            }
+         }
+      }
+      out.write('"');
+   }
+
+   /**
+    * Writes the first |length| bytes of |data| as base64, without line breaks.
+    */
+   static void writeBase64(byte[] data, int length, Writer out) throws IOException {
+      int i = 0;
+      for (; i + 2 < length; i += 3) {
+         int group = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+         out.write(BASE64[group >> 18]);
+         out.write(BASE64[group >> 12 & 0x3f]);
+         out.write(BASE64[group >> 6 & 0x3f]);
+         out.write(BASE64[group & 0x3f]);
+      }
+      int left = length - i;
+      if (left > 0) {
+         int group = (data[i] & 0xff) << 16 | (left == 2 ? (data[i + 1] & 0xff) << 8 : 0);
+         out.write(BASE64[group >> 18]);
+         out.write(BASE64[group >> 12 & 0x3f]);
+         out.write(left == 2 ? BASE64[group >> 6 & 0x3f] : '=');
+         out.write('=');
+      }
+   }
+
+   private static void drain(InputStream in) throws IOException {
+      if (in == null)
+         return;
+      try {
+         byte[] buffer = new byte[512];
+         while (in.read(buffer) != -1) {
+            // discards the response body
+         }
+      } finally {
+         in.close();
+      }
+   }
+}
@@ -1,11 +1,17 @@
 package com.jonathanwho.mirandafeedback;
 
 import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
+import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
+import android.view.LayoutInflater;
+import android.view.Window;
 
 /**
  * MirandaFeedback is wrapper class that creates a user-customizable feedback 
@@ -30,8 +36,24 @@ public class MirandaFeedback {
    private FragmentManager fragmentManager;
    /** The wrapped DialogFragment */
    private FeedbackDialog dialog;
+   /** Inflates the form, from the activity so that it gets its theme */
+   private LayoutInflater inflater;
+   /** The form views, built once for the current fields and reused by every show */
+   private FeedbackForm form;
+   /** True while the form waits for the main thread to be idle to be inflated */
+   private boolean formScheduled;
    /** True if the feedback email will be sent via plain text (versus default HTML) */
    private boolean textEmail;
+   /** Queues feedback that is not sent right away */
+   private FeedbackOutbox outbox;
+   /** True if feedback is merged into digests instead of being sent right away */
+   private boolean digestMode;
+   /** True if the recent entries of the {@link FeedbackLog} are attached */
+   private boolean attachLog;
+   /** True if a screenshot of the activity is attached */
+   private boolean attachScreenshot;
+   /** Window of the activity, drawn for the screenshot */
+   private Window window;
 
    /** Constants used for the dialog's arguments */
    public final static String APP_NAME = "APP_NAME";
@@ -41,19 +63,26 @@ public class MirandaFeedback {
    public final static String ADDED_FIELDS = "ADDED_FIELDS";
    public final static String TEXT_EMAIL = "TEXT_EMAIL";
    public final static String GMAIL_RECIPIENT = "GMAIL_RECIPIENT";
+   /**
+    * @deprecated The password is no longer passed to the dialog, which would
+    *    keep it in its saved state. The dialog sends through the outbox of
+    *    the account.
+    */
+   @Deprecated
    public final static String GMAIL_PW = "GMAIL_PW";
    public final static String GMAIL_FROM = "GMAIL_FROM";
    public final static String GMAIL_SUBJECT = "GMAIL_SUBJECT";
+   public final static String DIGEST_MODE = "DIGEST_MODE";
+   public final static String ATTACH_LOG = "ATTACH_LOG";
 
    /** Text for dialog buttons */
    private final static String POS_BUTTON_TXT = "Send";
    private final static String NEG_BUTTON_TXT = "Cancel";
 
    /** Gmail account information */
-   private static String gmailFromEmail;
-   private static String gmailPassword;
-   private static String gmailSubject;
-   private static String gmailRecipientEmail;
+   private final String gmailFromEmail;
+   private final String gmailSubject;
+   private final String gmailRecipientEmail;
 
    /**
     * Construct a new MirandaFeedback object.
@@ -78,10 +107,15 @@ public class MirandaFeedback {
       negativeButtonText = NEG_BUTTON_TXT;
       fragmentManager = ((FragmentActivity) context).getSupportFragmentManager();
       dialog = new FeedbackDialog();
+      inflater = LayoutInflater.from(context);
+      window = ((Activity) context).getWindow();
       gmailFromEmail = fromEmail;
-      gmailPassword = password;
       gmailSubject = subject;
       gmailRecipientEmail = recipientEmail;
+
+      // resumes sending feedback queued by a previous session
+      outbox = FeedbackOutbox.get(context, fromEmail, password);
+      scheduleFormInflation();
    }
 
    /** 
@@ -102,6 +136,8 @@ public class MirandaFeedback {
     */
    public MirandaFeedback addField(String label) {
       fields.add(label);
+      form = null;
+      scheduleFormInflation();
       return this;
    }
 
@@ -146,7 +182,152 @@ public class MirandaFeedback {
    }
 
    /**
-    * Sets arguments and displays the feedback dialog.
+    * Merges feedback into digest emails instead of sending every submission
+    * on its own. Submissions are queued and sent together, one section per
+    * submission, once the oldest has waited for |windowMs| or |maxBatchSize|
+    * submissions are queued.
+    * @param windowMs How long a submission may wait for others to join it.
+    * @param maxBatchSize Maximum number of submissions in one email.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setDigestMode(long windowMs, int maxBatchSize) {
+      digestMode = maxBatchSize > 1;
+      outbox.setDigestMode(windowMs, maxBatchSize);
+      return this;
+   }
+
+   /**
+    * Drops a submission identical to one sent within |windowMs|, ignoring
+    * case and whitespace, such as after a double tap on Send. Submissions
+    * are remembered across restarts. By default duplicates are dropped for
+    * 10 minutes.
+    * @param windowMs How long the same feedback is dropped, 0 to send
+    *    everything.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setDuplicateWindow(long windowMs) {
+      outbox.setDuplicateWindow(windowMs, DuplicateFilter.DEFAULT_MAX_ENTRIES);
+      return this;
+   }
+
+   /**
+    * Sets when feedback is sent. With any policy but
+    * {@link SendPolicy#IMMEDIATE}, the default, submissions are queued and
+    * sent together once the device is on Wi-Fi, charging or the deadline
+    * has passed, so that the radio wakes up once for all of them.
+    * @param policy When feedback is sent.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setSendPolicy(SendPolicy policy) {
+      outbox.setSendPolicy(policy);
+      return this;
+   }
+
+   /**
+    * Attaches the recent entries of {@link FeedbackLog#getInstance()},
+    * gzipped, to every submission.
+    * @param attachLog True to attach the log.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setAttachLog(boolean attachLog) {
+      this.attachLog = attachLog;
+      return this;
+   }
+
+   /**
+    * Attaches a screenshot of the activity, as it was when the dialog was
+    * shown, to every submission. It is scaled down so that its longest side
+    * is at most 960 pixels and sent as a JPEG.
+    * @param attachScreenshot True to attach a screenshot.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setAttachScreenshot(boolean attachScreenshot) {
+      this.attachScreenshot = attachScreenshot;
+      return this;
+   }
+
+   /**
+    * Limits how fast the Gmail account sends feedback from this device, to
+    * stay below the rate at which Gmail throttles or locks it: |burst|
+    * emails right away, then |perHour|. Feedback over the limit is queued
+    * and sent once the limit allows it. By default 20 emails, then 120 per
+    * hour. Has no effect on a transport set with
+    * {@link #setTransport(FeedbackTransport)}.
+    * @param burst Number of emails that may be sent at once, 0 for no limit.
+    * @param perHour Number of emails that may be sent per hour after a burst.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setRateLimit(int burst, int perHour) {
+      FeedbackTransport transport = outbox.getTransport();
+      if (transport instanceof GmailTransport)
+         ((GmailTransport) transport).setRateLimit(burst, perHour);
+      return this;
+   }
+
+   /**
+    * Delivers feedback through |transport| instead of the Gmail account, for
+    * example an {@link HttpJsonTransport} posting to your own server.
+    * @param transport The transport used for every send of this account.
+    * @return This MirandaFeedback object to allow for chaining of calls to set methods.
+    */
+   public MirandaFeedback setTransport(FeedbackTransport transport) {
+      outbox.setTransport(transport);
+      return this;
+   }
+
+   /**
+    * Starts the expensive part of sending, loading the mail classes and
+    * connecting to the server, in the background. Called by {@link #show()},
+    * call it earlier if you know the dialog is about to be shown.
+    */
+   public void prewarm() {
+      try {
+         SendExecutor.getInstance().submit(SendExecutor.Priority.LOW, new SendTask<Void>() {
+            @Override
+            protected Void doInBackground() {
+               outbox.getTransport().prewarm();
+               return null;
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         // sends are already queued, they will connect anyway
+      }
+   }
+
+   /**
+    * Creates a client that submits feedback without showing the dialog, with
+    * the fields, format, account and sending options configured so far.
+    * Options of the account set later, such as the send policy, apply to
+    * the client too.
+    * @return A client that can be used from any thread.
+    */
+   public FeedbackClient newClient() {
+      return new FeedbackClient(outbox, appName, gmailSubject, gmailRecipientEmail, textEmail,
+         attachLog, fields);
+   }
+
+   /**
+    * Inflates the form once the main thread has nothing else to do, after
+    * the calls configuring this object, so that {@link #show()} only has to
+    * attach it.
+    */
+   private void scheduleFormInflation() {
+      if (formScheduled)
+         return;
+      formScheduled = true;
+      Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+         public boolean queueIdle() {
+            formScheduled = false;
+            if (form == null)
+               form = new FeedbackForm(inflater, fields);
+            return false; // runs once
+         }
+      });
+   }
+
+   /**
+    * Sets arguments, displays the feedback dialog and prewarms the send
+    * path while the user is typing, if feedback is sent right away.
     */
    public void show() {
       Bundle arguments = new Bundle();
@@ -155,13 +336,22 @@ public class MirandaFeedback {
       arguments.putString(NEG_BUTTON, negativeButtonText);
       arguments.putString(DIALOG_TITLE, dialogTitle);
       arguments.putBoolean(TEXT_EMAIL, textEmail);
+      arguments.putBoolean(DIGEST_MODE, digestMode);
+      arguments.putBoolean(ATTACH_LOG, attachLog);
       arguments.putStringArrayList(ADDED_FIELDS, fields);
       arguments.putString(GMAIL_FROM, gmailFromEmail);
-      arguments.putString(GMAIL_PW, gmailPassword);
       arguments.putString(GMAIL_SUBJECT, gmailSubject);
       arguments.putString(GMAIL_RECIPIENT, gmailRecipientEmail);
       dialog.setArguments(arguments);
+      if (form == null)
+         form = new FeedbackForm(inflater, fields);
+      dialog.setForm(form);
+      // captured before the dialog covers the activity
+      dialog.setScreenshot(attachScreenshot ? Screenshot.capture(window.getDecorView(),
+         Screenshot.DEFAULT_MAX_SIZE) : null);
       dialog.show(fragmentManager, "feedback_dialog");
+      if (!digestMode && outbox.getSendPolicy().isImmediate())
+         prewarm();
    }
 
    /**
@@ -0,0 +1,212 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only queue of records stored in a single file.
+ *
+ * Layout:
+ *
+ * [magic:int][head:long] [length:int][crc32:int][payload] ...
+ *
+ * |head| is the offset of the oldest record that has not been removed yet.
+ * Records are only ever appended, removing a record just moves |head| forward.
+ * {@link #compact()} rewrites the file without the removed records. A record
+ * torn by process death fails its CRC and is cut off the next time the file
+ * is opened. Records are streamed from disk one at a time, so the queue
+ * can grow without growing the heap.
+ */
+class OutboxJournal {
+   private static final int MAGIC = 0x4d464f31; // "MFO1"
+   private static final int HEADER_SIZE = 12;
+   private static final int RECORD_HEADER_SIZE = 8;
+   private static final int COPY_BUFFER_SIZE = 8192;
+
+   private final File file;
+   private RandomAccessFile raf;
+   /** Offset of the oldest pending record */
+   private long head;
+   /** Offset right after the newest record */
+   private long tail;
+   /** Number of pending records */
+   private int count;
+
+   /**
+    * Construct a new OutboxJournal. The file is not touched until the first
+    * operation.
+    * @param file The backing file, created if it does not exist.
+    */
+   OutboxJournal(File file) {
+      this.file = file;
+   }
+
+   /**
+    * Appends a record and syncs it to disk.
+    * @param payload The record.
+    */
+   synchronized void append(byte[] payload) throws IOException {
+      open();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      raf.seek(tail);
+      raf.writeInt(payload.length);
+      raf.writeInt((int) crc.getValue());
+      raf.write(payload);
+      raf.getFD().sync();
+      tail += RECORD_HEADER_SIZE + payload.length;
+      count++;
+   }
+
+   /**
+    * @param max Maximum number of records to return.
+    * @return Up to |max| of the oldest pending records, oldest first.
+    */
+   synchronized List<byte[]> peek(int max) throws IOException {
+      open();
+      List<byte[]> records = new ArrayList<byte[]>(Math.min(max, count));
+      long position = head;
+      while (records.size() < max && records.size() < count) {
+         raf.seek(position);
+         byte[] payload = new byte[raf.readInt()];
+         raf.readInt(); // crc, verified when the file was opened
+         raf.readFully(payload);
+         records.add(payload);
+         position += RECORD_HEADER_SIZE + payload.length;
+      }
+      return records;
+   }
+
+   /**
+    * Removes the oldest pending records.
+    * @param n Number of records to remove.
+    */
+   synchronized void remove(int n) throws IOException {
+      open();
+      for (int i = 0; i < n && count > 0; i++) {
+         raf.seek(head);
+         head += RECORD_HEADER_SIZE + raf.readInt();
+         count--;
+      }
+      if (count == 0) {
+         // nothing left to keep, start over
+         head = tail = HEADER_SIZE;
+         raf.setLength(HEADER_SIZE);
+      }
+      writeHead();
+   }
+
+   /**
+    * @return Number of pending records.
+    */
+   synchronized int size() throws IOException {
+      open();
+      return count;
+   }
+
+   /**
+    * Rewrites the journal without the records that were already removed.
+    */
+   synchronized void compact() throws IOException {
+      open();
+      if (head == HEADER_SIZE)
+         return;
+
+      File compacted = new File(file.getPath() + ".tmp");
+      RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+      try {
+         out.setLength(0);
+         out.writeInt(MAGIC);
+         out.writeLong(HEADER_SIZE);
+         byte[] buffer = new byte[COPY_BUFFER_SIZE];
+         raf.seek(head);
+         long remaining = tail - head;
+         while (remaining > 0) {
+            int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0)
+               throw new IOException("Unexpected end of journal");
+            out.write(buffer, 0, read);
+            remaining -= read;
+         }
+         out.getFD().sync();
+      } finally {
+         out.close();
+      }
+
+      raf.close();
+      raf = null;
+      if (!compacted.renameTo(file))
+         throw new IOException("Could not replace " + file);
+      open();
+   }
+
+   /**
+    * Closes the backing file. It is reopened by the next operation.
+    */
+   synchronized void close() throws IOException {
+      if (raf != null) {
+         raf.close();
+         raf = null;
+      }
+   }
+
+   /**
+    * Opens the file, if needed, and finds the valid pending records.
+    */
+   private void open() throws IOException {
+      if (raf != null)
+         return;
+
+      raf = new RandomAccessFile(file, "rw");
+      if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+         raf.setLength(0);
+         raf.writeInt(MAGIC);
+         raf.writeLong(HEADER_SIZE);
+         raf.getFD().sync();
+      }
+      raf.seek(4);
+      head = raf.readLong();
+
+      long length = raf.length();
+      if (head < HEADER_SIZE || head > length)
+         head = HEADER_SIZE;
+
+      // walks the records and cuts off anything that was not fully written
+      CRC32 crc = new CRC32();
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      long position = head;
+      count = 0;
+      while (position + RECORD_HEADER_SIZE <= length) {
+         raf.seek(position);
+         int size = raf.readInt();
+         int expected = raf.readInt();
+         if (size < 0 || position + RECORD_HEADER_SIZE + size > length)
+            break;
+         crc.reset();
+         int remaining = size;
+         while (remaining > 0) {
+            int read = raf.read(buffer, 0, Math.min(buffer.length, remaining));
+            crc.update(buffer, 0, read);
+            remaining -= read;
+         }
+         if ((int) crc.getValue() != expected)
+            break;
+         position += RECORD_HEADER_SIZE + size;
+         count++;
+      }
+      tail = position;
+      if (tail < length)
+         raf.setLength(tail);
+      writeHead();
+   }
+
+   private void writeHead() throws IOException {
+      raf.seek(4);
+      raf.writeLong(head);
+      raf.getFD().sync();
+   }
+}
@@ -0,0 +1,118 @@
+package com.jonathanwho.mirandafeedback;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.view.View;
+
+import com.jonathanwho.mail.Attachment;
+
+/**
+ * A picture of the screen the feedback is about, attached as a JPEG when the
+ * dialog is configured with {@link MirandaFeedback#setAttachScreenshot(boolean)}.
+ *
+ * The view is drawn straight into a bitmap no larger than the maximum size,
+ * in RGB_565, so a full resolution ARGB copy of the screen never exists: a
+ * 1080x1920 screen costs about 1 MB instead of 8 MB. Encoding, the slow part,
+ * runs on the send thread. The bitmap is then kept for the next screenshot
+ * of the same size, so showing the dialog again does not allocate one.
+ */
+class Screenshot {
+   /** Default length in pixels of the longest side */
+   static final int DEFAULT_MAX_SIZE = 960;
+   /** Name of the attachment */
+   static final String ATTACHMENT_NAME = "screenshot.jpg";
+
+   private static final String ATTACHMENT_TYPE = "image/jpeg";
+   private static final int JPEG_QUALITY = 80;
+   private static final int BACKGROUND = 0xff000000;
+
+   /** The bitmap of the last screenshot released, reused by the next capture */
+   private static Bitmap spare;
+
+   private Bitmap bitmap;
+   private Attachment attachment;
+
+   private Screenshot(Bitmap bitmap) {
+      this.bitmap = bitmap;
+   }
+
+   /**
+    * Draws |view| scaled down so that its longest side is at most |maxSize|.
+    * Must be called on the main thread.
+    * @return The screenshot, or null if the view is not laid out yet or
+    *    there is not enough memory.
+    */
+   static Screenshot capture(View view, int maxSize) {
+      int width = view.getWidth();
+      int height = view.getHeight();
+      if (width == 0 || height == 0)
+         return null;
+      float scale = Math.min(1f, (float) maxSize / Math.max(width, height));
+      int scaledWidth = Math.max(1, Math.round(width * scale));
+      int scaledHeight = Math.max(1, Math.round(height * scale));
+
+      Bitmap bitmap;
+      try {
+         bitmap = obtainBitmap(scaledWidth, scaledHeight);
+      } catch (OutOfMemoryError e) {
+         // the feedback matters more than the picture
+         return null;
+      }
+      Canvas canvas = new Canvas(bitmap);
+      canvas.scale(scale, scale);
+      view.draw(canvas);
+      return new Screenshot(bitmap);
+   }
+
+   /**
+    * Encodes the screenshot, the first time it is called, and releases its
+    * bitmap. Call it off the main thread.
+    * @return The screenshot as a JPEG, or null if it was released before
+    *    being encoded.
+    */
+   synchronized Attachment compress() {
+      if (attachment == null && bitmap != null) {
+         // JPEG of a screen is usually under a tenth of its pixel count
+         AttachmentOutputStream out =
+            new AttachmentOutputStream(bitmap.getWidth() * bitmap.getHeight() / 10);
+         bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+         attachment = out.toAttachment(ATTACHMENT_NAME, ATTACHMENT_TYPE);
+         release();
+      }
+      return attachment;
+   }
+
+   /**
+    * Gives the bitmap back for the next capture. Called once the screenshot
+    * is encoded, or when the dialog is closed without sending.
+    */
+   synchronized void release() {
+      if (bitmap == null)
+         return;
+      synchronized (Screenshot.class) {
+         if (spare != null)
+            spare.recycle();
+         spare = bitmap;
+      }
+      bitmap = null;
+   }
+
+   /**
+    * @return The spare bitmap if it has the right size, a new one otherwise.
+    */
+   private static Bitmap obtainBitmap(int width, int height) {
+      Bitmap bitmap;
+      synchronized (Screenshot.class) {
+         bitmap = spare;
+         spare = null;
+      }
+      if (bitmap != null && bitmap.getWidth() == width && bitmap.getHeight() == height) {
+         // clears what the previous screenshot left where the view draws nothing
+         bitmap.eraseColor(BACKGROUND);
+         return bitmap;
+      }
+      if (bitmap != null)
+         bitmap.recycle();
+      return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+   }
+}
@@ -0,0 +1,208 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs the library's send work on its own threads, so feedback never waits
+ * behind the host app's AsyncTasks and never holds them up.
+ *
+ * Tasks wait in a bounded queue ordered by {@link Priority}, oldest first
+ * within a priority. When the queue is full {@link #submit(Priority, SendTask)}
+ * throws a RejectedExecutionException instead of queueing more work. Results
+ * are delivered on the main thread. Queue waits and depths are recorded in
+ * {@link FeedbackMetrics}.
+ */
+public class SendExecutor {
+   /** Default number of sends that run at the same time */
+   public static final int DEFAULT_PARALLELISM = 2;
+   /** Default number of tasks that may wait for a send thread */
+   public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+   private static final long KEEP_ALIVE_SECONDS = 30;
+
+   /**
+    * Priority lanes, in the order they are served.
+    */
+   public enum Priority {
+      /** Crash reports and other feedback that must not wait */
+      HIGH,
+      /** Feedback sent from the dialog */
+      NORMAL,
+      /** Work that can wait, such as draining queued feedback */
+      LOW
+   }
+
+   private static SendExecutor instance;
+
+   private final BoundedPriorityQueue queue;
+   private final ThreadPoolExecutor executor;
+   private final Handler mainHandler;
+   private final AtomicLong sequence;
+   private final FeedbackMetrics metrics;
+
+   /**
+    * @return The executor shared by the whole library.
+    */
+   public static synchronized SendExecutor getInstance() {
+      if (instance == null)
+         instance = new SendExecutor(DEFAULT_PARALLELISM, DEFAULT_QUEUE_CAPACITY);
+      return instance;
+   }
+
+   private SendExecutor(int parallelism, int queueCapacity) {
+      queue = new BoundedPriorityQueue(queueCapacity);
+      executor =
+         new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            queue, new ThreadFactory() {
+               private final AtomicInteger count = new AtomicInteger();
+
+               public Thread newThread(Runnable runnable) {
+                  Thread thread = new Thread(runnable, "MirandaSend #" + count.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      executor.allowCoreThreadTimeOut(true);
+      mainHandler = new Handler(Looper.getMainLooper());
+      sequence = new AtomicLong();
+      metrics = FeedbackMetrics.getInstance();
+   }
+
+   /**
+    * Sets how many sends may run at the same time.
+    * @param parallelism Number of send threads, at least 1.
+    */
+   public synchronized void setParallelism(int parallelism) {
+      parallelism = Math.max(1, parallelism);
+      if (parallelism > executor.getMaximumPoolSize()) {
+         executor.setMaximumPoolSize(parallelism);
+         executor.setCorePoolSize(parallelism);
+      } else {
+         executor.setCorePoolSize(parallelism);
+         executor.setMaximumPoolSize(parallelism);
+      }
+   }
+
+   /**
+    * Sets how many tasks may wait for a send thread before
+    * {@link #submit(Priority, SendTask)} starts rejecting work.
+    * @param queueCapacity Maximum number of waiting tasks.
+    */
+   public void setQueueCapacity(int queueCapacity) {
+      queue.capacity = Math.max(1, queueCapacity);
+   }
+
+   /**
+    * @return Number of tasks waiting for a send thread.
+    */
+   public int getQueueDepth() {
+      return queue.size();
+   }
+
+   /**
+    * Queues a task.
+    * @param priority The lane of the task.
+    * @param task The work to run.
+    * @return A Future that can be used to cancel the task.
+    * @throws RejectedExecutionException If the queue is full.
+    */
+   public <Result> Future<Result> submit(Priority priority, SendTask<Result> task) {
+      QueuedTask<Result> queued = new QueuedTask<Result>(priority, sequence.getAndIncrement(), task);
+      executor.execute(queued);
+      metrics.setWaitingTasks(queue.size());
+      return queued;
+   }
+
+   /**
+    * A task in the queue. Delivers its outcome to the main thread when done.
+    */
+   private class QueuedTask<Result> extends FutureTask<Result> implements
+      Comparable<QueuedTask<?>> {
+      private final Priority priority;
+      private final long order;
+      private final SendTask<Result> task;
+      private final long queuedAt;
+
+      QueuedTask(Priority priority, long order, final SendTask<Result> task) {
+         super(new Callable<Result>() {
+            public Result call() throws Exception {
+               return task.doInBackground();
+            }
+         });
+         this.priority = priority;
+         this.order = order;
+         this.task = task;
+         queuedAt = System.nanoTime();
+      }
+
+      @Override
+      public void run() {
+         metrics.recordPhase(FeedbackMetrics.Phase.QUEUE_WAIT, System.nanoTime() - queuedAt);
+         metrics.setWaitingTasks(queue.size());
+         super.run();
+      }
+
+      public int compareTo(QueuedTask<?> other) {
+         if (priority != other.priority)
+            return priority.compareTo(other.priority);
+         return order < other.order ? -1 : order == other.order ? 0 : 1;
+      }
+
+      @Override
+      protected void done() {
+         mainHandler.post(new Runnable() {
+            public void run() {
+               if (isCancelled()) {
+                  task.onCancelled();
+                  return;
+               }
+               try {
+                  task.onPostExecute(get());
+               } catch (ExecutionException e) {
+                  Throwable cause = e.getCause();
+                  task.onError(cause instanceof Exception ? (Exception) cause
+                     : new RuntimeException(cause));
+               } catch (InterruptedException e) {
+                  task.onCancelled();
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * A priority queue that refuses new work once it holds |capacity| tasks,
+    * which makes the ThreadPoolExecutor reject the submission.
+    */
+   private static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+      private static final long serialVersionUID = 5179403325638447521L;
+
+      volatile int capacity;
+
+      BoundedPriorityQueue(int capacity) {
+         this.capacity = capacity;
+      }
+
+      @Override
+      public boolean offer(Runnable runnable) {
+         synchronized (this) {
+            if (size() >= capacity)
+               return false;
+            return super.offer(runnable);
+         }
+      }
+   }
+}
@@ -0,0 +1,77 @@
+package com.jonathanwho.mirandafeedback;
+
+/**
+ * When queued feedback may be sent. Sending right away wakes the cellular
+ * radio into its high-power state for every submission. Feedback that is
+ * not urgent can instead wait for an unmetered network, for the device to
+ * charge or for a deadline, and then be sent together in one wake-up.
+ */
+public final class SendPolicy {
+   /** Sends every submission right away */
+   public static final SendPolicy IMMEDIATE = new SendPolicy(Condition.NONE, 0);
+
+   /** What a deferred send waits for, besides its deadline */
+   enum Condition {
+      /** Nothing, the submission is sent right away */
+      NONE,
+      /** A Wi-Fi or Ethernet connection */
+      UNMETERED,
+      /** A power source */
+      CHARGING,
+      /** Only the deadline */
+      DEADLINE
+   }
+
+   private final Condition condition;
+   private final long deadlineMs;
+
+   private SendPolicy(Condition condition, long deadlineMs) {
+      this.condition = condition;
+      this.deadlineMs = deadlineMs;
+   }
+
+   /**
+    * Sends queued feedback once the device is on an unmetered network.
+    * @param deadlineMs How long feedback may wait for one before it is sent
+    *    over any network.
+    */
+   public static SendPolicy whenUnmetered(long deadlineMs) {
+      return new SendPolicy(Condition.UNMETERED, deadlineMs);
+   }
+
+   /**
+    * Sends queued feedback once the device is charging.
+    * @param deadlineMs How long feedback may wait for a charger before it is
+    *    sent anyway.
+    */
+   public static SendPolicy whileCharging(long deadlineMs) {
+      return new SendPolicy(Condition.CHARGING, deadlineMs);
+   }
+
+   /**
+    * Holds feedback back until the oldest submission is |deadlineMs| old,
+    * then sends everything queued so far together.
+    * @param deadlineMs How long the oldest submission may wait.
+    */
+   public static SendPolicy withinDeadline(long deadlineMs) {
+      return new SendPolicy(Condition.DEADLINE, deadlineMs);
+   }
+
+   /**
+    * @return True if feedback is sent as soon as it is submitted.
+    */
+   public boolean isImmediate() {
+      return condition == Condition.NONE;
+   }
+
+   Condition getCondition() {
+      return condition;
+   }
+
+   /**
+    * @return How long feedback may wait, 0 for an immediate policy.
+    */
+   public long getDeadlineMs() {
+      return deadlineMs;
+   }
+}
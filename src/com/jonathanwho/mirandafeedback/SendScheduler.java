@@ -0,0 +1,119 @@
+package com.jonathanwho.mirandafeedback;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the queued feedback of an outbox is sent, from its
+ * {@link SendPolicy}, the time and the state of the device. Both are read
+ * through interfaces, and the delayed drains of the outbox run on the same
+ * clock, so the decisions and their timing can be replayed with a fake
+ * clock and a fake device.
+ */
+class SendScheduler {
+   /** Returned by {@link #delayMs(long)} when only a change of the device's state can allow a send */
+   static final long WAIT_FOR_DEVICE = Long.MAX_VALUE;
+
+   /**
+    * Tells the time, in the time base of {@link FeedbackMessage#getTimestamp()},
+    * and runs tasks once some of it has passed.
+    */
+   interface Clock {
+      long currentTimeMillis();
+
+      /** Runs |task| once |delayMs| have passed on this clock. */
+      Future<?> schedule(Runnable task, long delayMs);
+   }
+
+   /**
+    * What the device can do right now.
+    */
+   interface DeviceState {
+      /** @return True if there is a network connection. */
+      boolean isConnected();
+
+      /** @return True if the connection is not billed by the byte, e.g. Wi-Fi. */
+      boolean isUnmetered();
+
+      /** @return True if the device is plugged into a power source. */
+      boolean isCharging();
+   }
+
+   private final Clock clock;
+   private final DeviceState device;
+   private volatile SendPolicy policy = SendPolicy.IMMEDIATE;
+
+   /**
+    * Construct a new SendScheduler with the immediate policy.
+    */
+   SendScheduler(Clock clock, DeviceState device) {
+      this.clock = clock;
+      this.device = device;
+   }
+
+   void setPolicy(SendPolicy policy) {
+      this.policy = policy;
+   }
+
+   SendPolicy getPolicy() {
+      return policy;
+   }
+
+   /**
+    * @return The wall clock, running its tasks on |executor|.
+    */
+   static Clock systemClock(final ScheduledExecutorService executor) {
+      return new Clock() {
+         public long currentTimeMillis() {
+            return System.currentTimeMillis();
+         }
+
+         public Future<?> schedule(Runnable task, long delayMs) {
+            return executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+         }
+      };
+   }
+
+   long now() {
+      return clock.currentTimeMillis();
+   }
+
+   /**
+    * Runs |task| once |delayMs| have passed on the clock of this scheduler.
+    */
+   Future<?> schedule(Runnable task, long delayMs) {
+      return clock.schedule(task, delayMs);
+   }
+
+   boolean isConnected() {
+      return device.isConnected();
+   }
+
+   /**
+    * @param oldestQueuedAt Time the oldest queued submission was made.
+    * @return 0 if the queued feedback may be sent now, otherwise how long
+    *    until the deadline, or {@link #WAIT_FOR_DEVICE} if there is none.
+    */
+   long delayMs(long oldestQueuedAt) {
+      if (!device.isConnected())
+         return WAIT_FOR_DEVICE;
+      SendPolicy current = policy;
+      switch (current.getCondition()) {
+      case NONE:
+         return 0;
+      case UNMETERED:
+         if (device.isUnmetered())
+            return 0;
+         break;
+      case CHARGING:
+         if (device.isCharging())
+            return 0;
+         break;
+      case DEADLINE:
+         break;
+      }
+      long delay = oldestQueuedAt + current.getDeadlineMs() - clock.currentTimeMillis();
+      return delay > 0 ? delay : 0;
+   }
+}
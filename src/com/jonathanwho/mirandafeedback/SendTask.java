@@ -0,0 +1,36 @@
+package com.jonathanwho.mirandafeedback;
+
+/**
+ * Work submitted to the {@link SendExecutor}. Like an AsyncTask,
+ * {@link #doInBackground()} runs on a worker thread and the callbacks are
+ * delivered on the main thread.
+ * @param <Result> Type of the result of the background work.
+ */
+public abstract class SendTask<Result> {
+
+   /**
+    * Runs on a send thread.
+    * @return The result handed to {@link #onPostExecute(Object)}.
+    */
+   protected abstract Result doInBackground() throws Exception;
+
+   /**
+    * Runs on the main thread once {@link #doInBackground()} returned.
+    * @param result The result of {@link #doInBackground()}.
+    */
+   protected void onPostExecute(Result result) {
+   }
+
+   /**
+    * Runs on the main thread if {@link #doInBackground()} threw.
+    * @param error The exception thrown by {@link #doInBackground()}.
+    */
+   protected void onError(Exception error) {
+   }
+
+   /**
+    * Runs on the main thread if the task was cancelled before it finished.
+    */
+   protected void onCancelled() {
+   }
+}